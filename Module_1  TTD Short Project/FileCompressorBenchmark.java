@@ -0,0 +1,412 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+// Throughput and allocation benchmarks for FileCompressor.
+//
+// Runs every combination of mode, content type, input size, buffer size and
+// thread count, JMH style: a few warmup iterations, then measured iterations
+// of fixed duration, each running as many operations as fit. Input data is
+// generated from a fixed seed, so runs are repeatable offline. Results are
+// written as JSON in the shape JMH uses for its own result files, so the
+// same tooling can keep and compare baselines.
+//
+// Usage: java FileCompressorBenchmark [--sizes 1K,1M,64M,1G] [--content random,text,logs,zeros]
+//        [--modes stream,channel,parallel,multimember] [--buffers 64K,1M] [--threads 1,4]
+//        [--warmup 2] [--iterations 5] [--seconds 1] [--out results.json]
+public class FileCompressorBenchmark {
+
+    enum Mode {
+        // The original GZIP stream path; takes no tuning parameters
+        STREAM,
+        // Memory-mapped channel path; varies the buffer size
+        CHANNEL,
+        // Block-parallel single-member gzip; varies the thread count
+        PARALLEL,
+        // Independent members with an index, decompressed in parallel; varies the thread count
+        MULTIMEMBER
+    }
+
+    enum Content {
+        RANDOM, TEXT, LOGS, ZEROS
+    }
+
+    // One benchmark result in JMH's JSON layout
+    static class Result {
+        final String benchmark;
+        final Mode mode;
+        final Content content;
+        final long size;
+        final int bufferSize;
+        final int threads;
+        final double megabytesPerSecond;
+        final double allocatedBytesPerOp;
+        final boolean allocationCoversAllThreads;
+        final double compressionRatio;
+        final int iterations;
+
+        Result(String benchmark, Mode mode, Content content, long size, int bufferSize, int threads,
+               double megabytesPerSecond, double allocatedBytesPerOp, boolean allocationCoversAllThreads,
+               double compressionRatio, int iterations) {
+            this.benchmark = benchmark;
+            this.mode = mode;
+            this.content = content;
+            this.size = size;
+            this.bufferSize = bufferSize;
+            this.threads = threads;
+            this.megabytesPerSecond = megabytesPerSecond;
+            this.allocatedBytesPerOp = allocatedBytesPerOp;
+            this.allocationCoversAllThreads = allocationCoversAllThreads;
+            this.compressionRatio = compressionRatio;
+            this.iterations = iterations;
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT,
+                    "  {%n"
+                    + "    \"benchmark\" : \"FileCompressorBenchmark.%s\",%n"
+                    + "    \"mode\" : \"thrpt\",%n"
+                    + "    \"measurementIterations\" : %d,%n"
+                    + "    \"params\" : {%n"
+                    + "      \"mode\" : \"%s\",%n"
+                    + "      \"content\" : \"%s\",%n"
+                    + "      \"size\" : \"%d\",%n"
+                    + "      \"bufferSize\" : \"%d\",%n"
+                    + "      \"threads\" : \"%d\"%n"
+                    + "    },%n"
+                    + "    \"primaryMetric\" : {%n"
+                    + "      \"score\" : %.3f,%n"
+                    + "      \"scoreUnit\" : \"MB/s\"%n"
+                    + "    },%n"
+                    + "    \"secondaryMetrics\" : {%n"
+                    + "      \"gc.alloc.rate.norm\" : {%n"
+                    + "        \"score\" : %.1f,%n"
+                    + "        \"scoreUnit\" : \"B/op\",%n"
+                    + "        \"allThreads\" : %b%n"
+                    + "      },%n"
+                    + "      \"compression.ratio\" : {%n"
+                    + "        \"score\" : %.4f,%n"
+                    + "        \"scoreUnit\" : \"out/in\"%n"
+                    + "      }%n"
+                    + "    }%n"
+                    + "  }",
+                    benchmark, iterations, mode.name().toLowerCase(Locale.ROOT), content.name().toLowerCase(Locale.ROOT),
+                    size, bufferSize, threads, megabytesPerSecond, allocatedBytesPerOp, allocationCoversAllThreads,
+                    compressionRatio);
+        }
+    }
+
+    // Allocation counter. Java 21 can count every thread, which the parallel
+    // modes need because their pools die with each call; older runtimes only
+    // count the calling thread, and the results say so.
+    static class AllocationCounter {
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Method totalAllocated;
+
+        AllocationCounter() {
+            Method method;
+            try {
+                method = com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedBytes");
+            } catch (NoSuchMethodException e) {
+                method = null;
+            }
+            totalAllocated = method;
+        }
+
+        boolean coversAllThreads() {
+            return totalAllocated != null;
+        }
+
+        long allocatedBytes() {
+            if (totalAllocated != null) {
+                try {
+                    return (Long) totalAllocated.invoke(threads);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    private static final String[] WORDS = {
+        "the", "compressor", "block", "stream", "of", "file", "data", "and", "buffer", "index",
+        "member", "gzip", "a", "to", "deflate", "throughput", "in", "channel", "is", "for"
+    };
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+
+    private List<Long> sizes = parseSizes("1K,1M,64M");
+    private List<Content> contents = Arrays.asList(Content.values());
+    private List<Mode> modes = Arrays.asList(Mode.values());
+    private List<Integer> bufferSizes = Arrays.asList(64 * 1024, 1024 * 1024);
+    private List<Integer> threadCounts = Arrays.asList(1, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private int warmupIterations = 2;
+    private int measurementIterations = 5;
+    private long iterationNanos = 1_000_000_000L;
+    private File resultFile = new File("benchmark-results.json");
+
+    private final AllocationCounter allocations = new AllocationCounter();
+
+    public static void main(String[] args) throws IOException {
+        FileCompressorBenchmark benchmark = new FileCompressorBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            benchmark.configure(args[i], args[i + 1]);
+        }
+        benchmark.run();
+    }
+
+    private void configure(String option, String value) {
+        switch (option) {
+            case "--sizes":
+                sizes = parseSizes(value);
+                break;
+            case "--content":
+                contents = new ArrayList<>();
+                for (String name : value.split(",")) {
+                    contents.add(Content.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+                }
+                break;
+            case "--modes":
+                modes = new ArrayList<>();
+                for (String name : value.split(",")) {
+                    modes.add(Mode.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+                }
+                break;
+            case "--buffers":
+                bufferSizes = new ArrayList<>();
+                for (long size : parseSizes(value)) {
+                    bufferSizes.add(Math.toIntExact(size));
+                }
+                break;
+            case "--threads":
+                threadCounts = new ArrayList<>();
+                for (String count : value.split(",")) {
+                    threadCounts.add(Integer.parseInt(count.trim()));
+                }
+                break;
+            case "--warmup":
+                warmupIterations = Integer.parseInt(value);
+                break;
+            case "--iterations":
+                measurementIterations = Integer.parseInt(value);
+                break;
+            case "--seconds":
+                iterationNanos = (long) (Double.parseDouble(value) * 1e9);
+                break;
+            case "--out":
+                resultFile = new File(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    private void run() throws IOException {
+        List<Result> results = new ArrayList<>();
+        File workDir = Files.createTempDirectory("fcbench").toFile();
+        try {
+            for (Content content : contents) {
+                for (long size : sizes) {
+                    File input = new File(workDir, content + "-" + size + ".dat");
+                    generate(input, content, size);
+                    for (Mode mode : modes) {
+                        for (int[] variant : variants(mode)) {
+                            results.addAll(measure(workDir, input, mode, content, size, variant[0], variant[1]));
+                        }
+                    }
+                    input.delete();
+                }
+            }
+        } finally {
+            for (File file : workDir.listFiles()) {
+                file.delete();
+            }
+            workDir.delete();
+        }
+
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(resultFile), StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                out.write(results.get(i).toJson());
+                out.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            out.write("]\n");
+        }
+        System.out.println("Wrote " + results.size() + " results to " + resultFile);
+    }
+
+    // Parameter combinations that matter for a mode, as {bufferSize, threads}
+    private List<int[]> variants(Mode mode) {
+        List<int[]> variants = new ArrayList<>();
+        switch (mode) {
+            case STREAM:
+                variants.add(new int[] {1024, 1});
+                break;
+            case CHANNEL:
+                for (int bufferSize : bufferSizes) {
+                    variants.add(new int[] {bufferSize, 1});
+                }
+                break;
+            default:
+                for (int threads : threadCounts) {
+                    variants.add(new int[] {0, threads});
+                }
+        }
+        return variants;
+    }
+
+    private List<Result> measure(File workDir, File input, Mode mode, Content content, long size,
+                                 int bufferSize, int threads) throws IOException {
+        File compressed = new File(workDir, "out.gz");
+        File restored = new File(workDir, "out.dat");
+        compress(mode, input, compressed, bufferSize, threads);
+        double ratio = (double) compressed.length() / Math.max(1, size);
+
+        List<Result> results = new ArrayList<>();
+        for (boolean compressing : new boolean[] {true, false}) {
+            IoTask task = compressing
+                    ? () -> compress(mode, input, compressed, bufferSize, threads)
+                    : () -> decompress(mode, compressed, restored, bufferSize, threads);
+            for (int i = 0; i < warmupIterations; i++) {
+                iterate(task);
+            }
+            double bytesPerSecond = 0;
+            double allocatedPerOp = 0;
+            for (int i = 0; i < measurementIterations; i++) {
+                double[] iteration = iterate(task);
+                bytesPerSecond += iteration[0] * size / (iteration[1] / 1e9);
+                allocatedPerOp += iteration[2] / iteration[0];
+            }
+            Result result = new Result(compressing ? "compressFile" : "decompressFile", mode, content, size,
+                    bufferSize, threads, bytesPerSecond / measurementIterations / (1 << 20),
+                    allocatedPerOp / measurementIterations, allocations.coversAllThreads(), ratio, measurementIterations);
+            System.out.printf(Locale.ROOT, "%-14s %-11s %-6s %10d B  buf %8d  thr %2d  %9.1f MB/s  %12.0f B/op%n",
+                    result.benchmark, mode, content, size, bufferSize, threads, result.megabytesPerSecond,
+                    result.allocatedBytesPerOp);
+            results.add(result);
+        }
+        compressed.delete();
+        restored.delete();
+        return results;
+    }
+
+    // Run operations until the iteration time is used up; returns {ops, nanos, allocated bytes}
+    private double[] iterate(IoTask task) throws IOException {
+        long operations = 0;
+        long allocatedBefore = allocations.allocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            task.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return new double[] {operations, elapsed, allocations.allocatedBytes() - allocatedBefore};
+    }
+
+    private static void compress(Mode mode, File input, File output, int bufferSize, int threads) throws IOException {
+        switch (mode) {
+            case STREAM:
+                FileCompressorTest.FileCompressor.compressFile(input, output);
+                break;
+            case CHANNEL:
+                FileCompressorTest.FileCompressor.compressFile(input, output,
+                        new FileCompressorTest.IoOptions(bufferSize, FileCompressorTest.IoOptions.DEFAULT.getMappingWindow()));
+                break;
+            case PARALLEL:
+                FileCompressorTest.FileCompressor.compressFileParallel(input, output,
+                        FileCompressorTest.ParallelGzip.DEFAULT_BLOCK_SIZE, threads);
+                break;
+            default:
+                FileCompressorTest.FileCompressor.compressFileMultiMember(input, output,
+                        FileCompressorTest.ParallelGzip.DEFAULT_MEMBER_SIZE, threads);
+        }
+    }
+
+    private static void decompress(Mode mode, File input, File output, int bufferSize, int threads) throws IOException {
+        switch (mode) {
+            case STREAM:
+            case PARALLEL:
+                FileCompressorTest.FileCompressor.decompressFile(input, output);
+                break;
+            case CHANNEL:
+                FileCompressorTest.FileCompressor.decompressFile(input, output,
+                        new FileCompressorTest.IoOptions(bufferSize, FileCompressorTest.IoOptions.DEFAULT.getMappingWindow()));
+                break;
+            default:
+                FileCompressorTest.FileCompressor.decompressFileParallel(input, output, threads);
+        }
+    }
+
+    // Write size bytes of the given kind, always the same bytes for the same arguments
+    static void generate(File file, Content content, long size) throws IOException {
+        SplittableRandom random = new SplittableRandom(content.ordinal() * 31L + size);
+        byte[] chunk = new byte[1 << 20];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            long written = 0;
+            long timestamp = 1_700_000_000_000L;
+            StringBuilder text = new StringBuilder();
+            while (written < size) {
+                int length = (int) Math.min(chunk.length, size - written);
+                switch (content) {
+                    case RANDOM:
+                        for (int i = 0; i < length; i++) {
+                            chunk[i] = (byte) random.nextInt(256);
+                        }
+                        break;
+                    case ZEROS:
+                        Arrays.fill(chunk, 0, length, (byte) 0);
+                        break;
+                    default:
+                        while (text.length() < length) {
+                            if (content == Content.TEXT) {
+                                text.append(WORDS[random.nextInt(WORDS.length)])
+                                        .append(random.nextInt(12) == 0 ? ".\n" : " ");
+                            } else {
+                                timestamp += random.nextInt(50);
+                                text.append(timestamp).append(' ').append(LEVELS[random.nextInt(LEVELS.length)])
+                                        .append(" [worker-").append(random.nextInt(16)).append("] request ")
+                                        .append(random.nextInt(100_000)).append(" served in ")
+                                        .append(random.nextInt(500)).append(" ms\n");
+                            }
+                        }
+                        for (int i = 0; i < length; i++) {
+                            chunk[i] = (byte) text.charAt(i);
+                        }
+                        text.delete(0, length);
+                }
+                out.write(chunk, 0, length);
+                written += length;
+            }
+        }
+    }
+
+    static List<Long> parseSizes(String value) {
+        List<Long> sizes = new ArrayList<>();
+        for (String part : value.split(",")) {
+            String size = part.trim().toUpperCase(Locale.ROOT);
+            long unit = 1;
+            if (size.endsWith("K")) {
+                unit = 1L << 10;
+            } else if (size.endsWith("M")) {
+                unit = 1L << 20;
+            } else if (size.endsWith("G")) {
+                unit = 1L << 30;
+            }
+            sizes.add(Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit);
+        }
+        return sizes;
+    }
+
+    interface IoTask {
+        void run() throws IOException;
+    }
+}
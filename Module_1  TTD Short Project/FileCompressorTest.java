@@ -1,7 +1,46 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -26,18 +65,2062 @@ public class FileCompressorTest {
             }
         }
 
-        // Decompress a file
+        // Decompress a file; manifests from a deduplicating store are rebuilt from their chunks
         public static void decompressFile(File inputFile, File outputFile) throws IOException {
+            if (DedupStore.isManifest(inputFile)) {
+                DedupStore.restore(inputFile, outputFile);
+                return;
+            }
             try (FileInputStream fis = new FileInputStream(inputFile);
                  GZIPInputStream gzis = new GZIPInputStream(fis);
                  FileOutputStream fos = new FileOutputStream(outputFile)) {
 
-                byte[] buffer = new byte[1024];
-                int length;
-                while ((length = gzis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, length);
+                byte[] buffer = new byte[1024];
+                int length;
+                while ((length = gzis.read(buffer)) > 0) {
+                    fos.write(buffer, 0, length);
+                }
+            }
+        }
+
+        // Compress a byte array into gzip format without touching the filesystem
+        public static byte[] compress(byte[] data) throws IOException {
+            return CodecPool.SHARED.compress(data);
+        }
+
+        public static byte[] decompress(byte[] data) throws IOException {
+            return CodecPool.SHARED.decompress(data);
+        }
+
+        // Compress everything read from the stream; neither stream is closed
+        public static void compress(InputStream in, OutputStream out) throws IOException {
+            CodecPool.SHARED.compress(in, out);
+        }
+
+        public static void decompress(InputStream in, OutputStream out) throws IOException {
+            CodecPool.SHARED.decompress(in, out);
+        }
+
+        // Compress everything read from the channel; neither channel is closed
+        public static void compress(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+            CodecPool.SHARED.compress(in, out);
+        }
+
+        public static void decompress(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+            CodecPool.SHARED.decompress(in, out);
+        }
+
+        // Compress every file under a directory tree into the target tree, adding ".gz"
+        public static BatchProgress compressDirectory(File sourceDir, File targetDir, BatchProgressListener listener) throws IOException {
+            return new BatchCompressor(Runtime.getRuntime().availableProcessors(), listener).compressDirectory(sourceDir, targetDir);
+        }
+
+        // Decompress every ".gz" file under a directory tree into the target tree
+        public static BatchProgress decompressDirectory(File sourceDir, File targetDir, BatchProgressListener listener) throws IOException {
+            return new BatchCompressor(Runtime.getRuntime().availableProcessors(), listener).decompressDirectory(sourceDir, targetDir);
+        }
+
+        // Store a file in a deduplicating chunk store and write its manifest;
+        // decompressFile turns the manifest back into the file
+        public static DedupStore.StoreResult compressFileDeduplicated(File inputFile, File manifestFile, File storeDir) throws IOException {
+            try (DedupStore store = new DedupStore(storeDir)) {
+                return store.store(inputFile, manifestFile);
+            }
+        }
+
+        // Compress a file into multi-member gzip, choosing the deflate level and
+        // strategy of each block from a sample of its content
+        public static void compressFileAdaptive(File inputFile, File outputFile, CompressionTarget target) throws IOException {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try (FileInputStream fis = new FileInputStream(inputFile);
+                 FileOutputStream fos = new FileOutputStream(outputFile);
+                 BufferedOutputStream bos = new BufferedOutputStream(fos, 1 << 16)) {
+                ParallelGzip.compressMembers(fis, bos, ParallelGzip.DEFAULT_MEMBER_SIZE, executor, threads * 2, target)
+                        .writeTo(bos);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        // Parameters recorded for each block of an adaptively compressed file
+        public static List<BlockParameters> readBlockParameters(File inputFile) throws IOException {
+            try (FileChannel source = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+                GzipMemberIndex index = GzipMemberIndex.read(source);
+                if (index == null) {
+                    throw new ZipException(inputFile + " is not a multi-member file");
+                }
+                List<BlockParameters> parameters = new ArrayList<>(index.size());
+                ByteBuffer header = ByteBuffer.allocate(ParallelGzip.MEMBER_HEADER_SIZE + ParallelGzip.PARAMETERS_SUBFIELD_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for (int member = 0; member < index.size(); member++) {
+                    header.clear();
+                    ParallelGzip.readFully(source, header, index.compressedOffset(member));
+                    parameters.add(BlockParameters.readSubfield(header));
+                }
+                return parameters;
+            }
+        }
+
+        // Compress a file through memory-mapped input and direct buffers
+        public static void compressFile(File inputFile, File outputFile, IoOptions options) throws IOException {
+            try (FileChannel source = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ChannelIo.deflate(source, target, options);
+            }
+        }
+
+        // Decompress a file through memory-mapped input and direct buffers
+        public static void decompressFile(File inputFile, File outputFile, IoOptions options) throws IOException {
+            try (FileChannel source = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ChannelIo.inflate(source, target, options);
+            }
+        }
+
+        // Compress a file on all available cores into a single gzip stream
+        public static void compressFileParallel(File inputFile, File outputFile) throws IOException {
+            compressFileParallel(inputFile, outputFile, ParallelGzip.DEFAULT_BLOCK_SIZE,
+                    Runtime.getRuntime().availableProcessors());
+        }
+
+        // Compress a file in fixed-size blocks on a pool of the given size
+        public static void compressFileParallel(File inputFile, File outputFile, int blockSize, int threads) throws IOException {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try (FileInputStream fis = new FileInputStream(inputFile);
+                 FileOutputStream fos = new FileOutputStream(outputFile);
+                 BufferedOutputStream bos = new BufferedOutputStream(fos, 1 << 16)) {
+                ParallelGzip.compress(fis, bos, blockSize, executor, threads * 2);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        // Compress a file into independent gzip members followed by a block index.
+        // The result is seekable: see readRange.
+        public static void compressFileMultiMember(File inputFile, File outputFile) throws IOException {
+            compressFileMultiMember(inputFile, outputFile, ParallelGzip.DEFAULT_MEMBER_SIZE,
+                    Runtime.getRuntime().availableProcessors());
+        }
+
+        public static void compressFileMultiMember(File inputFile, File outputFile, int blockSize, int threads) throws IOException {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try (FileInputStream fis = new FileInputStream(inputFile);
+                 FileOutputStream fos = new FileOutputStream(outputFile);
+                 BufferedOutputStream bos = new BufferedOutputStream(fos, 1 << 16)) {
+                GzipMemberIndex index = ParallelGzip.compressMembers(fis, bos, blockSize, executor, threads * 2);
+                index.writeTo(bos);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        // Read part of a file written by compressFileMultiMember, inflating only
+        // the members that overlap the range. Fewer bytes are returned when the
+        // range runs past the end of the data.
+        public static byte[] readRange(File inputFile, long offset, int length) throws IOException {
+            try (SeekableGzipReader reader = new SeekableGzipReader(inputFile)) {
+                return reader.read(offset, length);
+            }
+        }
+
+        // Check the CRC32 and size of every gzip member without writing any output.
+        // Indexed files are checked member by member in parallel. Returns the
+        // uncompressed length; a corrupt file throws a ZipException.
+        public static long verifyFile(File inputFile) throws IOException {
+            return verifyFile(inputFile, Runtime.getRuntime().availableProcessors());
+        }
+
+        public static long verifyFile(File inputFile, int threads) throws IOException {
+            try (FileChannel source = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+                GzipMemberIndex index = GzipMemberIndex.read(source);
+                if (index == null) {
+                    DiscardChannel sink = new DiscardChannel();
+                    ChannelIo.inflate(source, sink, IoOptions.DEFAULT);
+                    return sink.getCount();
+                }
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    ParallelGzip.decompressMembers(source, null, index, executor);
+                } finally {
+                    executor.shutdownNow();
+                }
+                return index.uncompressedLength();
+            }
+        }
+
+        // Write a CRC32C per block of the compressed file next to it, as <file>.crc32c
+        public static File writeChecksums(File compressedFile) throws IOException {
+            File sidecar = ChecksumSidecar.sidecarFor(compressedFile);
+            ChecksumSidecar.write(compressedFile, sidecar, ChecksumSidecar.DEFAULT_BLOCK_SIZE);
+            return sidecar;
+        }
+
+        // Check the compressed file against its sidecar in parallel; returns the corrupt regions
+        public static List<ChecksumSidecar.Region> verifyChecksums(File compressedFile) throws IOException {
+            return ChecksumSidecar.verify(compressedFile, ChecksumSidecar.sidecarFor(compressedFile),
+                    Runtime.getRuntime().availableProcessors());
+        }
+
+        // Decompress a file on all available cores when it is made of indexed members
+        public static void decompressFileParallel(File inputFile, File outputFile) throws IOException {
+            decompressFileParallel(inputFile, outputFile, Runtime.getRuntime().availableProcessors());
+        }
+
+        // Decompress independent members in parallel, or fall back to one sequential pass
+        public static void decompressFileParallel(File inputFile, File outputFile, int threads) throws IOException {
+            try (FileChannel source = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                GzipMemberIndex index = GzipMemberIndex.read(source);
+                if (index == null) {
+                    ChannelIo.inflate(source, target, IoOptions.DEFAULT);
+                    return;
+                }
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    ParallelGzip.decompressMembers(source, target, index, executor);
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    // Block-parallel gzip writer. Each block is deflated on its own with the
+    // previous block's last 32 KB as a preset dictionary and ended with a sync
+    // flush, so the blocks concatenate into one ordinary deflate stream.
+    public static class ParallelGzip {
+
+        public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+        public static final int DEFAULT_MEMBER_SIZE = 1024 * 1024;
+        static final int DICTIONARY_SIZE = 32 * 1024;
+
+        // Gzip header flags
+        static final int FHCRC = 0x02;
+        static final int FEXTRA = 0x04;
+        static final int FNAME = 0x08;
+        static final int FCOMMENT = 0x10;
+
+        // Header of a multi-member block: 10 fixed bytes plus an extra field
+        // holding the "FC" subfield with the total member length. Adaptive
+        // members add an "FP" subfield with the chosen parameters after it.
+        static final int MEMBER_HEADER_SIZE = 20;
+        static final int PARAMETERS_SUBFIELD_SIZE = 8;
+
+        // Empty final block (fixed Huffman, end-of-block only) that terminates the deflate stream
+        static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+        // Compress the input stream into the output as one gzip member
+        public static void compress(InputStream in, OutputStream out, int blockSize,
+                                    ExecutorService executor, int maxInFlight) throws IOException {
+            if (blockSize < DICTIONARY_SIZE) {
+                throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + " bytes");
+            }
+            writeHeader(out);
+
+            CRC32 crc = new CRC32();
+            long totalLength = 0;
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            byte[] dictionary = null;
+
+            byte[] block = new byte[blockSize];
+            int length;
+            while ((length = in.readNBytes(block, 0, blockSize)) > 0) {
+                crc.update(block, 0, length);
+                totalLength += length;
+
+                byte[] data = block;
+                int dataLength = length;
+                byte[] presetDictionary = dictionary;
+                pending.add(executor.submit(() -> deflateBlock(data, dataLength, presetDictionary)));
+
+                dictionary = Arrays.copyOfRange(block, Math.max(0, length - DICTIONARY_SIZE), length);
+                block = new byte[blockSize];
+
+                // Keep the output in order and the memory bounded
+                while (pending.size() >= maxInFlight) {
+                    out.write(await(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.poll()));
+            }
+
+            out.write(FINAL_BLOCK);
+            writeInt(out, (int) crc.getValue());
+            writeInt(out, (int) totalLength);
+        }
+
+        // Compress the input stream into one independent gzip member per block.
+        // Members are written in order; the returned index describes them.
+        public static GzipMemberIndex compressMembers(InputStream in, OutputStream out, int blockSize,
+                                                      ExecutorService executor, int maxInFlight) throws IOException {
+            return compressMembers(in, out, blockSize, executor, maxInFlight, null);
+        }
+
+        // As above, choosing the level and strategy of each block for the target
+        // when one is given and recording them in the member header
+        public static GzipMemberIndex compressMembers(InputStream in, OutputStream out, int blockSize, ExecutorService executor,
+                                                      int maxInFlight, CompressionTarget target) throws IOException {
+            GzipMemberIndex index = new GzipMemberIndex();
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            Deque<Integer> lengths = new ArrayDeque<>();
+
+            byte[] block = new byte[blockSize];
+            int length;
+            while ((length = in.readNBytes(block, 0, blockSize)) > 0) {
+                byte[] data = block;
+                int dataLength = length;
+                pending.add(executor.submit(() -> deflateMember(data, dataLength,
+                        target != null ? BlockParameters.choose(data, dataLength, target) : null)));
+                lengths.add(length);
+                block = new byte[blockSize];
+
+                writeMembers(pending, lengths, maxInFlight - 1, out, index);
+            }
+            writeMembers(pending, lengths, 0, out, index);
+            return index;
+        }
+
+        private static void writeMembers(Deque<Future<byte[]>> pending, Deque<Integer> lengths, int keep,
+                                         OutputStream out, GzipMemberIndex index) throws IOException {
+            while (pending.size() > keep) {
+                byte[] member = await(pending.poll());
+                out.write(member);
+                index.append(member.length, lengths.poll());
+            }
+        }
+
+        // Deflate one block into a complete gzip member with its own CRC and size
+        static byte[] deflateMember(byte[] data, int length, BlockParameters parameters) throws IOException {
+            Deflater deflater = CodecPool.SHARED.borrowDeflater();
+            ByteBuffer buffer = CodecPool.SHARED.borrowBuffer();
+            try {
+                if (parameters != null) {
+                    deflater.setLevel(parameters.getLevel());
+                    deflater.setStrategy(parameters.getStrategy());
+                }
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+
+                int extraLength = parameters != null ? PARAMETERS_SUBFIELD_SIZE : 0;
+                ByteArrayChannel out = new ByteArrayChannel(length / 2 + 64);
+                out.write(new byte[MEMBER_HEADER_SIZE + extraLength]);
+                while (!deflater.finished()) {
+                    deflater.deflate(buffer);
+                    out.write(buffer.flip());
+                    buffer.clear();
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, length);
+                writeInt(out, (int) crc.getValue());
+                writeInt(out, length);
+
+                byte[] member = out.toByteArray();
+                ByteBuffer header = ByteBuffer.wrap(member).order(ByteOrder.LITTLE_ENDIAN)
+                        .put((byte) 0x1f).put((byte) 0x8b).put((byte) Deflater.DEFLATED).put((byte) FEXTRA)
+                        .putInt(0).put((byte) 0).put((byte) 0)
+                        .putShort((short) (8 + extraLength)).put((byte) 'F').put((byte) 'C').putShort((short) 4)
+                        .putInt(member.length);
+                if (parameters != null) {
+                    parameters.writeSubfield(header);
+                }
+                return member;
+            } finally {
+                CodecPool.SHARED.release(buffer);
+                CodecPool.SHARED.release(deflater);
+            }
+        }
+
+        // Inflate every member of an indexed file on the executor, writing each
+        // result at its own offset in the target. A null target only checks
+        // each member against its CRC and size.
+        public static void decompressMembers(FileChannel source, FileChannel target, GzipMemberIndex index,
+                                             ExecutorService executor) throws IOException {
+            List<Future<Void>> futures = new ArrayList<>(index.size());
+            for (int i = 0; i < index.size(); i++) {
+                int member = i;
+                futures.add(executor.submit(() -> {
+                    inflateMember(source, target, index, member);
+                    return null;
+                }));
+            }
+            try {
+                for (Future<Void> future : futures) {
+                    await(future);
+                }
+            } finally {
+                for (Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        static void inflateMember(FileChannel source, FileChannel target, GzipMemberIndex index, int member) throws IOException {
+            long compressedOffset = index.compressedOffset(member);
+            byte[] data = inflateMember(source, compressedOffset, Math.toIntExact(index.compressedLength(member)),
+                    Math.toIntExact(index.uncompressedLength(member)));
+            if (target != null) {
+                writeFully(target, ByteBuffer.wrap(data), index.uncompressedOffset(member));
+            }
+        }
+
+        // Read one member, inflate it and check it against its trailer
+        static byte[] inflateMember(FileChannel source, long offset, int compressedLength, int uncompressedLength) throws IOException {
+            byte[] member = new byte[compressedLength];
+            readFully(source, ByteBuffer.wrap(member), offset);
+            int headerLength = headerLength(member);
+
+            byte[] data = new byte[uncompressedLength];
+            Inflater inflater = CodecPool.SHARED.borrowInflater();
+            try {
+                inflater.setInput(member, headerLength, compressedLength - headerLength - 8);
+                int count = 0;
+                while (count < data.length) {
+                    int n = inflater.inflate(data, count, data.length - count);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new ZipException("Gzip member at offset " + offset + " is shorter than its index entry");
+                    }
+                    count += n;
+                }
+                // Consume the end-of-block code and make sure nothing is left over
+                if (!inflater.finished() && (inflater.inflate(new byte[1]) != 0 || !inflater.finished())) {
+                    throw new ZipException("Gzip member at offset " + offset + " is longer than its index entry");
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupt gzip member at offset " + offset + ": " + e.getMessage());
+            } finally {
+                CodecPool.SHARED.release(inflater);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            ByteBuffer trailer = ByteBuffer.wrap(member, compressedLength - 8, 8).order(ByteOrder.LITTLE_ENDIAN);
+            if (trailer.getInt() != (int) crc.getValue() || trailer.getInt() != uncompressedLength) {
+                throw new ZipException("CRC or size mismatch in gzip member at offset " + offset);
+            }
+            return data;
+        }
+
+        // Length of the gzip header at the start of a member
+        static int headerLength(byte[] member) throws ZipException {
+            if (member.length < 18 || (member[0] & 0xff) != 0x1f || (member[1] & 0xff) != 0x8b
+                    || member[2] != Deflater.DEFLATED) {
+                throw new ZipException("Not in gzip format");
+            }
+            int flags = member[3];
+            int position = 10;
+            if ((flags & FEXTRA) != 0) {
+                position += 2 + ((member[position] & 0xff) | (member[position + 1] & 0xff) << 8);
+            }
+            if ((flags & FNAME) != 0) {
+                while (member[position++] != 0) {
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (member[position++] != 0) {
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                position += 2;
+            }
+            return position;
+        }
+
+        static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    throw new EOFException("Unexpected end of file at offset " + position);
+                }
+                position += count;
+            }
+        }
+
+        static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        // Deflate one block and end it on a byte boundary without marking it final
+        static byte[] deflateBlock(byte[] data, int length, byte[] dictionary) {
+            Deflater deflater = CodecPool.SHARED.borrowDeflater();
+            ByteBuffer buffer = CodecPool.SHARED.borrowBuffer();
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(data, 0, length);
+
+                ByteArrayChannel out = new ByteArrayChannel(length / 2 + 64);
+                int count;
+                do {
+                    count = deflater.deflate(buffer, Deflater.SYNC_FLUSH);
+                    out.write(buffer.flip());
+                    buffer.clear();
+                } while (count == buffer.capacity() || !deflater.needsInput());
+                return out.toByteArray();
+            } finally {
+                CodecPool.SHARED.release(buffer);
+                CodecPool.SHARED.release(deflater);
+            }
+        }
+
+        static <T> T await(Future<T> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a block");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Block task failed", cause);
+            }
+        }
+
+        // Fixed 10-byte gzip header: deflate, no flags, no mtime
+        static void writeHeader(OutputStream out) throws IOException {
+            out.write(new byte[] {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0});
+        }
+
+        static void writeInt(OutputStream out, int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+
+    // Random access into a multi-member file. The index is loaded once when
+    // the reader is opened, so repeated reads only touch the members they need.
+    public static class SeekableGzipReader implements Closeable {
+
+        private final FileChannel channel;
+        private final GzipMemberIndex index;
+
+        public SeekableGzipReader(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                index = GzipMemberIndex.read(channel);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            if (index == null) {
+                channel.close();
+                throw new ZipException(file + " has no member index; write it with compressFileMultiMember");
+            }
+        }
+
+        // Length of the decompressed data
+        public long length() {
+            return index.uncompressedLength();
+        }
+
+        public byte[] read(long offset, int length) throws IOException {
+            if (offset < 0 || length < 0) {
+                throw new IllegalArgumentException("Negative offset or length");
+            }
+            int available = (int) Math.max(0, Math.min(length, index.uncompressedLength() - offset));
+            byte[] result = new byte[available];
+            int copied = 0;
+            for (int member = index.findMember(offset); copied < available; member++) {
+                byte[] data = ParallelGzip.inflateMember(channel, index.compressedOffset(member),
+                        Math.toIntExact(index.compressedLength(member)), Math.toIntExact(index.uncompressedLength(member)));
+                int start = (int) (offset + copied - index.uncompressedOffset(member));
+                int count = Math.min(data.length - start, available - copied);
+                System.arraycopy(data, start, result, copied, count);
+                copied += count;
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Tuning for the channel-based I/O path. The buffer size is used for the
+    // direct output buffer and for plain channel reads; the mapping window is
+    // how much of the input is mapped at a time, or 0 to read through the
+    // channel instead of mapping (better on network filesystems, where page
+    // faults on a mapping turn into many small remote reads).
+    public static class IoOptions {
+
+        public static final IoOptions DEFAULT = new IoOptions(1 << 20, 64L << 20);
+        public static final IoOptions NVME = new IoOptions(4 << 20, 256L << 20);
+        public static final IoOptions NETWORK_FILESYSTEM = new IoOptions(8 << 20, 0);
+
+        private final int bufferSize;
+        private final long mappingWindow;
+
+        public IoOptions(int bufferSize, long mappingWindow) {
+            if (bufferSize < 64) {
+                throw new IllegalArgumentException("Buffer size is too small: " + bufferSize);
+            }
+            if (mappingWindow < 0 || mappingWindow > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Mapping window must be between 0 and 2 GB: " + mappingWindow);
+            }
+            this.bufferSize = bufferSize;
+            this.mappingWindow = mappingWindow;
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public long getMappingWindow() {
+            return mappingWindow;
+        }
+
+        public boolean isMapped() {
+            return mappingWindow > 0;
+        }
+    }
+
+    // Gzip over FileChannels. Input comes from a mapped window or a direct
+    // buffer, Deflater and Inflater work on the ByteBuffers directly and
+    // output goes through one direct buffer, so no data passes through the heap.
+    public static class ChannelIo {
+
+        // Sliding view over the input; ensure() makes bytes available at the current position
+        interface Input {
+            ByteBuffer buffer();
+
+            boolean ensure(int needed) throws IOException;
+        }
+
+        // Input mapped window by window. A new window starts at the current
+        // position, so a header never straddles two windows.
+        static class MappedInput implements Input {
+            private final FileChannel channel;
+            private final long size;
+            private final long window;
+            private MappedByteBuffer buffer;
+            private long bufferStart;
+
+            MappedInput(FileChannel channel, long window) throws IOException {
+                this.channel = channel;
+                this.size = channel.size();
+                this.window = window;
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(window, size));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            public ByteBuffer buffer() {
+                return buffer;
+            }
+
+            public boolean ensure(int needed) throws IOException {
+                if (buffer.remaining() >= needed) {
+                    return true;
+                }
+                long position = bufferStart + buffer.position();
+                if (size - position < needed) {
+                    return false;
+                }
+                bufferStart = position;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(window, size - position));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                return true;
+            }
+        }
+
+        // Input read through a channel into a (usually direct) buffer
+        static class ChannelInput implements Input {
+            private final ReadableByteChannel channel;
+            private final ByteBuffer buffer;
+
+            ChannelInput(ReadableByteChannel channel, ByteBuffer buffer) {
+                this.channel = channel;
+                this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.clear().flip();
+            }
+
+            public ByteBuffer buffer() {
+                return buffer;
+            }
+
+            public boolean ensure(int needed) throws IOException {
+                if (buffer.remaining() >= needed) {
+                    return true;
+                }
+                buffer.compact();
+                try {
+                    while (buffer.position() < needed) {
+                        if (channel.read(buffer) < 0) {
+                            return false;
+                        }
+                    }
+                    return true;
+                } finally {
+                    buffer.flip();
+                }
+            }
+        }
+
+        // Input that is already entirely in memory
+        static class BufferInput implements Input {
+            private final ByteBuffer buffer;
+
+            BufferInput(ByteBuffer buffer) {
+                this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            public ByteBuffer buffer() {
+                return buffer;
+            }
+
+            public boolean ensure(int needed) {
+                return buffer.remaining() >= needed;
+            }
+        }
+
+        static Input open(FileChannel channel, IoOptions options) throws IOException {
+            return options.isMapped()
+                    ? new MappedInput(channel, options.getMappingWindow())
+                    : new ChannelInput(channel, ByteBuffer.allocateDirect(options.getBufferSize()));
+        }
+
+        // Compress the whole source into one gzip member
+        public static void deflate(FileChannel source, FileChannel target, IoOptions options) throws IOException {
+            Deflater deflater = CodecPool.SHARED.borrowDeflater();
+            try {
+                deflate(open(source, options), target, ByteBuffer.allocateDirect(options.getBufferSize()), deflater);
+            } finally {
+                CodecPool.SHARED.release(deflater);
+            }
+        }
+
+        // Inflate a gzip stream of any number of members in one pass
+        public static void inflate(FileChannel source, WritableByteChannel target, IoOptions options) throws IOException {
+            Inflater inflater = CodecPool.SHARED.borrowInflater();
+            try {
+                inflate(open(source, options), target, ByteBuffer.allocateDirect(options.getBufferSize()), inflater);
+            } finally {
+                CodecPool.SHARED.release(inflater);
+            }
+        }
+
+        // Compress the input into one gzip member using the given output buffer and a reset Deflater
+        static void deflate(Input input, WritableByteChannel target, ByteBuffer output, Deflater deflater) throws IOException {
+            output.clear().order(ByteOrder.LITTLE_ENDIAN);
+            output.put(new byte[] {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0});
+
+            CRC32 crc = new CRC32();
+            long size = 0;
+            while (input.ensure(1)) {
+                ByteBuffer buffer = input.buffer();
+                crc.update(buffer.duplicate());
+                size += buffer.remaining();
+                deflater.setInput(buffer);
+                while (!deflater.needsInput()) {
+                    deflater.deflate(output);
+                    if (!output.hasRemaining()) {
+                        drain(output, target);
+                    }
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+                if (!output.hasRemaining()) {
+                    drain(output, target);
+                }
+            }
+            if (output.remaining() < 8) {
+                drain(output, target);
+            }
+            output.putInt((int) crc.getValue()).putInt((int) size);
+            drain(output, target);
+        }
+
+        // Inflate every gzip member in the input using the given output buffer and a reset Inflater
+        static void inflate(Input input, WritableByteChannel target, ByteBuffer output, Inflater inflater) throws IOException {
+            output.clear();
+            CRC32 crc = new CRC32();
+            try {
+                while (input.ensure(1)) {
+                    skipHeader(input);
+                    inflater.reset();
+                    crc.reset();
+                    long size = 0;
+                    while (!inflater.finished()) {
+                        if (inflater.needsInput()) {
+                            if (!input.ensure(1)) {
+                                throw new EOFException("Unexpected end of gzip stream");
+                            }
+                            inflater.setInput(input.buffer());
+                        }
+                        inflater.inflate(output);
+                        if (inflater.needsDictionary()) {
+                            throw new ZipException("Gzip stream requires a preset dictionary");
+                        }
+                        crc.update(output.duplicate().flip());
+                        size += output.position();
+                        drain(output, target);
+                    }
+                    if (!input.ensure(8)) {
+                        throw new EOFException("Missing gzip trailer");
+                    }
+                    ByteBuffer trailer = input.buffer();
+                    if (trailer.getInt() != (int) crc.getValue() || trailer.getInt() != (int) size) {
+                        throw new ZipException("CRC or size mismatch in gzip trailer");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupt gzip stream: " + e.getMessage());
+            }
+        }
+
+        // Write out a filled buffer and clear it for reuse
+        private static void drain(ByteBuffer output, WritableByteChannel target) throws IOException {
+            output.flip();
+            while (output.hasRemaining()) {
+                target.write(output);
+            }
+            output.clear();
+        }
+
+        // Skip one gzip header at the current input position
+        private static void skipHeader(Input input) throws IOException {
+            if (!input.ensure(10)) {
+                throw new EOFException("Truncated gzip header");
+            }
+            ByteBuffer buffer = input.buffer();
+            if ((buffer.get() & 0xff) != 0x1f || (buffer.get() & 0xff) != 0x8b || buffer.get() != Deflater.DEFLATED) {
+                throw new ZipException("Not in gzip format");
+            }
+            int flags = buffer.get();
+            buffer.position(buffer.position() + 6);
+            if ((flags & ParallelGzip.FEXTRA) != 0) {
+                if (!input.ensure(2)) {
+                    throw new EOFException("Truncated gzip header");
+                }
+                skip(input, input.buffer().getShort() & 0xffff);
+            }
+            if ((flags & ParallelGzip.FNAME) != 0) {
+                skipString(input);
+            }
+            if ((flags & ParallelGzip.FCOMMENT) != 0) {
+                skipString(input);
+            }
+            if ((flags & ParallelGzip.FHCRC) != 0) {
+                skip(input, 2);
+            }
+        }
+
+        private static void skip(Input input, int length) throws IOException {
+            while (length > 0) {
+                if (!input.ensure(1)) {
+                    throw new EOFException("Truncated gzip header");
+                }
+                ByteBuffer buffer = input.buffer();
+                int count = Math.min(length, buffer.remaining());
+                buffer.position(buffer.position() + count);
+                length -= count;
+            }
+        }
+
+        private static void skipString(Input input) throws IOException {
+            do {
+                if (!input.ensure(1)) {
+                    throw new EOFException("Truncated gzip header");
+                }
+            } while (input.buffer().get() != 0);
+        }
+    }
+
+    // Bounded pool of raw-deflate Deflaters and Inflaters and of direct
+    // buffers, shared by all threads. Borrowing never blocks: an empty pool
+    // hands out a new object, and a full pool frees a returned one instead of
+    // keeping it, so native memory stays bounded.
+    public static class CodecPool {
+
+        public static final CodecPool SHARED = new CodecPool(Runtime.getRuntime().availableProcessors() * 2, 64 * 1024);
+
+        private final ArrayBlockingQueue<Deflater> deflaters;
+        private final ArrayBlockingQueue<Inflater> inflaters;
+        private final ArrayBlockingQueue<ByteBuffer> buffers;
+        private final int bufferSize;
+
+        public CodecPool(int capacity, int bufferSize) {
+            deflaters = new ArrayBlockingQueue<>(capacity);
+            inflaters = new ArrayBlockingQueue<>(capacity);
+            buffers = new ArrayBlockingQueue<>(capacity * 2);
+            this.bufferSize = bufferSize;
+        }
+
+        public Deflater borrowDeflater() {
+            Deflater deflater = deflaters.poll();
+            return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+
+        // Return a Deflater; its level and strategy go back to the defaults
+        public void release(Deflater deflater) {
+            deflater.reset();
+            deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+            deflater.setStrategy(Deflater.DEFAULT_STRATEGY);
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        public Inflater borrowInflater() {
+            Inflater inflater = inflaters.poll();
+            return inflater != null ? inflater : new Inflater(true);
+        }
+
+        public void release(Inflater inflater) {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+
+        // Borrow a cleared little-endian direct buffer
+        public ByteBuffer borrowBuffer() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+            buffer.clear();
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public void release(ByteBuffer buffer) {
+            buffers.offer(buffer);
+        }
+
+        public byte[] compress(byte[] data) throws IOException {
+            ByteArrayChannel out = new ByteArrayChannel(data.length / 2 + 64);
+            deflate(new ChannelIo.BufferInput(ByteBuffer.wrap(data)), out);
+            return out.toByteArray();
+        }
+
+        public byte[] decompress(byte[] data) throws IOException {
+            ByteArrayChannel out = new ByteArrayChannel(data.length * 3 + 64);
+            inflate(new ChannelIo.BufferInput(ByteBuffer.wrap(data)), out);
+            return out.toByteArray();
+        }
+
+        public void compress(InputStream in, OutputStream out) throws IOException {
+            compress(Channels.newChannel(in), Channels.newChannel(out));
+        }
+
+        public void decompress(InputStream in, OutputStream out) throws IOException {
+            decompress(Channels.newChannel(in), Channels.newChannel(out));
+        }
+
+        public void compress(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+            ByteBuffer buffer = borrowBuffer();
+            try {
+                deflate(new ChannelIo.ChannelInput(in, buffer), out);
+            } finally {
+                release(buffer);
+            }
+        }
+
+        public void decompress(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+            ByteBuffer buffer = borrowBuffer();
+            try {
+                inflate(new ChannelIo.ChannelInput(in, buffer), out);
+            } finally {
+                release(buffer);
+            }
+        }
+
+        private void deflate(ChannelIo.Input input, WritableByteChannel out) throws IOException {
+            Deflater deflater = borrowDeflater();
+            ByteBuffer output = borrowBuffer();
+            try {
+                ChannelIo.deflate(input, out, output, deflater);
+            } finally {
+                release(output);
+                release(deflater);
+            }
+        }
+
+        private void inflate(ChannelIo.Input input, WritableByteChannel out) throws IOException {
+            Inflater inflater = borrowInflater();
+            ByteBuffer output = borrowBuffer();
+            try {
+                ChannelIo.inflate(input, out, output, inflater);
+            } finally {
+                release(output);
+                release(inflater);
+            }
+        }
+    }
+
+    // In-memory sink that accepts ByteBuffers without an intermediate copy
+    static class ByteArrayChannel extends ByteArrayOutputStream implements WritableByteChannel {
+
+        ByteArrayChannel(int size) {
+            super(size);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            if (count + length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+            }
+            src.get(buf, count, length);
+            count += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+    // Content-addressed chunk store for files that share most of their bytes.
+    // Files are cut with a content-defined chunker (FastCDC-style gear hash),
+    // so an insertion only changes the chunks around it. Each new chunk is
+    // compressed once and appended to pack.dat, and its SHA-256 and location
+    // are appended to index.dat. A file becomes a manifest listing its chunks.
+    public static class DedupStore implements Closeable {
+
+        static final int MIN_CHUNK = 2 * 1024;
+        static final int AVG_CHUNK = 8 * 1024;
+        static final int MAX_CHUNK = 64 * 1024;
+
+        // Masks from the FastCDC paper: harder to match before the average size, easier after
+        private static final long MASK_SMALL = 0x0003590703530000L;
+        private static final long MASK_LARGE = 0x0000d90003530000L;
+        private static final long[] GEAR = new long[256];
+
+        static {
+            // Fixed seed: chunk boundaries must not change between runs
+            Random random = new Random(0x6765617248L);
+            for (int i = 0; i < GEAR.length; i++) {
+                GEAR[i] = random.nextLong();
+            }
+        }
+
+        static final int MANIFEST_MAGIC = 0x4643444d;
+        private static final int HASH_SIZE = 32;
+        private static final int INDEX_RECORD_SIZE = HASH_SIZE + 16;
+
+        private final File storeDir;
+        private final FileChannel pack;
+        private final DataOutputStream index;
+        private final Map<ChunkKey, ChunkLocation> chunks = new HashMap<>();
+        private long packLength;
+
+        // Open or create a store, loading its index
+        public DedupStore(File storeDir) throws IOException {
+            this.storeDir = storeDir.getAbsoluteFile();
+            Files.createDirectories(storeDir.toPath());
+            pack = FileChannel.open(new File(storeDir, "pack.dat").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            packLength = pack.size();
+
+            // Only keep index records whose chunk made it into the pack
+            File indexFile = new File(storeDir, "index.dat");
+            long validLength = 0;
+            if (indexFile.exists()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+                    long records = indexFile.length() / INDEX_RECORD_SIZE;
+                    for (long i = 0; i < records; i++) {
+                        byte[] hash = new byte[HASH_SIZE];
+                        in.readFully(hash);
+                        ChunkLocation location = new ChunkLocation(in.readLong(), in.readInt(), in.readInt());
+                        if (location.offset + location.compressedLength > packLength) {
+                            break;
+                        }
+                        chunks.put(new ChunkKey(hash), location);
+                        validLength += INDEX_RECORD_SIZE;
+                    }
+                }
+            }
+            try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+                file.setLength(validLength);
+            }
+            index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true), 1 << 16));
+        }
+
+        // Chunk a file, add the chunks not yet stored and write the manifest
+        public synchronized StoreResult store(File inputFile, File manifestFile) throws IOException {
+            MessageDigest digest = sha256();
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream manifest = new DataOutputStream(records);
+            int chunkCount = 0;
+            int newChunks = 0;
+            long length = 0;
+            long newBytes = 0;
+
+            try (FileInputStream in = new FileInputStream(inputFile)) {
+                byte[] buffer = new byte[1 << 20];
+                int start = 0;
+                int end = 0;
+                boolean eof = false;
+                while (true) {
+                    if (!eof && end - start < MAX_CHUNK) {
+                        System.arraycopy(buffer, start, buffer, 0, end - start);
+                        end -= start;
+                        start = 0;
+                        int count = in.readNBytes(buffer, end, buffer.length - end);
+                        end += count;
+                        eof = end < buffer.length;
+                    }
+                    if (start == end) {
+                        break;
+                    }
+                    int cut = nextBoundary(buffer, start, end);
+                    byte[] hash = digest.digest(Arrays.copyOfRange(buffer, start, start + cut));
+                    ChunkKey key = new ChunkKey(hash);
+                    ChunkLocation location = chunks.get(key);
+                    if (location == null) {
+                        location = append(key, Arrays.copyOfRange(buffer, start, start + cut));
+                        newChunks++;
+                        newBytes += location.compressedLength;
+                    }
+                    manifest.write(hash);
+                    manifest.writeLong(location.offset);
+                    manifest.writeInt(location.compressedLength);
+                    manifest.writeInt(location.length);
+                    chunkCount++;
+                    length += cut;
+                    start += cut;
+                }
+            }
+            index.flush();
+            pack.force(false);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifestFile), 1 << 16))) {
+                out.writeInt(MANIFEST_MAGIC);
+                out.writeUTF(storeDir.getPath());
+                out.writeLong(length);
+                out.writeInt(chunkCount);
+                records.writeTo(out);
+            }
+            return new StoreResult(chunkCount, newChunks, length, newBytes);
+        }
+
+        private ChunkLocation append(ChunkKey key, byte[] chunk) throws IOException {
+            byte[] compressed = CodecPool.SHARED.compress(chunk);
+            ChunkLocation location = new ChunkLocation(packLength, compressed.length, chunk.length);
+            ParallelGzip.writeFully(pack, ByteBuffer.wrap(compressed), packLength);
+            packLength += compressed.length;
+
+            index.write(key.hash);
+            index.writeLong(location.offset);
+            index.writeInt(location.compressedLength);
+            index.writeInt(location.length);
+            chunks.put(key, location);
+            return location;
+        }
+
+        // Length of the next chunk starting at start, cut where the gear hash matches
+        static int nextBoundary(byte[] buffer, int start, int end) {
+            int available = end - start;
+            if (available <= MIN_CHUNK) {
+                return available;
+            }
+            int normal = Math.min(available, AVG_CHUNK);
+            int max = Math.min(available, MAX_CHUNK);
+            long fingerprint = 0;
+            int i = MIN_CHUNK;
+            for (; i < normal; i++) {
+                fingerprint = (fingerprint << 1) + GEAR[buffer[start + i] & 0xff];
+                if ((fingerprint & MASK_SMALL) == 0) {
+                    return i;
+                }
+            }
+            for (; i < max; i++) {
+                fingerprint = (fingerprint << 1) + GEAR[buffer[start + i] & 0xff];
+                if ((fingerprint & MASK_LARGE) == 0) {
+                    return i;
+                }
+            }
+            return max;
+        }
+
+        static boolean isManifest(File file) throws IOException {
+            if (file.length() < 4) {
+                return false;
+            }
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                return in.readInt() == MANIFEST_MAGIC;
+            }
+        }
+
+        // Rebuild a file from its manifest, checking every chunk against its hash
+        public static void restore(File manifestFile, File outputFile) throws IOException {
+            MessageDigest digest = sha256();
+            try (DataInputStream manifest = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile), 1 << 16))) {
+                if (manifest.readInt() != MANIFEST_MAGIC) {
+                    throw new ZipException(manifestFile + " is not a manifest");
+                }
+                File storeDir = new File(manifest.readUTF());
+                long length = manifest.readLong();
+                int chunkCount = manifest.readInt();
+
+                try (FileChannel pack = FileChannel.open(new File(storeDir, "pack.dat").toPath(), StandardOpenOption.READ);
+                     OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+                    long written = 0;
+                    byte[] hash = new byte[HASH_SIZE];
+                    for (int i = 0; i < chunkCount; i++) {
+                        manifest.readFully(hash);
+                        long offset = manifest.readLong();
+                        byte[] compressed = new byte[manifest.readInt()];
+                        int chunkLength = manifest.readInt();
+                        ParallelGzip.readFully(pack, ByteBuffer.wrap(compressed), offset);
+                        byte[] chunk = CodecPool.SHARED.decompress(compressed);
+                        if (chunk.length != chunkLength || !Arrays.equals(hash, digest.digest(chunk))) {
+                            throw new ZipException("Chunk " + i + " of " + manifestFile + " does not match its hash");
+                        }
+                        out.write(chunk);
+                        written += chunk.length;
+                    }
+                    if (written != length) {
+                        throw new ZipException(manifestFile + " lists " + written + " bytes but expects " + length);
+                    }
+                }
+            }
+        }
+
+        // Bytes of compressed chunk data held by the store
+        public synchronized long getPackLength() {
+            return packLength;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                index.close();
+            } finally {
+                pack.close();
+            }
+        }
+
+        private static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        private static class ChunkKey {
+            final byte[] hash;
+
+            ChunkKey(byte[] hash) {
+                this.hash = hash;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return other instanceof ChunkKey && Arrays.equals(hash, ((ChunkKey) other).hash);
+            }
+
+            @Override
+            public int hashCode() {
+                // The hash is already uniformly distributed
+                return (hash[0] & 0xff) << 24 | (hash[1] & 0xff) << 16 | (hash[2] & 0xff) << 8 | (hash[3] & 0xff);
+            }
+        }
+
+        private static class ChunkLocation {
+            final long offset;
+            final int compressedLength;
+            final int length;
+
+            ChunkLocation(long offset, int compressedLength, int length) {
+                this.offset = offset;
+                this.compressedLength = compressedLength;
+                this.length = length;
+            }
+        }
+
+        // What one store call added
+        public static class StoreResult {
+            private final int chunks;
+            private final int newChunks;
+            private final long length;
+            private final long newBytes;
+
+            StoreResult(int chunks, int newChunks, long length, long newBytes) {
+                this.chunks = chunks;
+                this.newChunks = newChunks;
+                this.length = length;
+                this.newBytes = newBytes;
+            }
+
+            public int getChunks() {
+                return chunks;
+            }
+
+            public int getNewChunks() {
+                return newChunks;
+            }
+
+            public long getLength() {
+                return length;
+            }
+
+            // Compressed bytes appended to the pack for this file
+            public long getNewBytes() {
+                return newBytes;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("%d chunks, %d new, %d of %d bytes written", chunks, newChunks, newBytes, length);
+            }
+        }
+    }
+
+    // What adaptive compression optimises for
+    public enum CompressionTarget {
+        MAX_THROUGHPUT, BALANCED, MAX_RATIO
+    }
+
+    // Deflate level and strategy chosen for one block, with the entropy
+    // estimate that led to the choice
+    public static class BlockParameters {
+
+        private static final int SAMPLE_SIZE = 64 * 1024;
+
+        private final int level;
+        private final int strategy;
+        private final double entropy;
+
+        public BlockParameters(int level, int strategy, double entropy) {
+            this.level = level;
+            this.strategy = strategy;
+            this.entropy = entropy;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getStrategy() {
+            return strategy;
+        }
+
+        // Order-0 entropy of the sampled bytes, in bits per byte
+        public double getEntropy() {
+            return entropy;
+        }
+
+        // Pick parameters from an evenly spaced sample of the block. Near-random
+        // data (already compressed media) is stored, or Huffman-coded when it
+        // still has some skew; everything else gets a level for the target, with
+        // FILTERED for binary data whose byte values are unevenly spread.
+        public static BlockParameters choose(byte[] data, int length, CompressionTarget target) {
+            int[] counts = new int[256];
+            int stride = Math.max(1, length / SAMPLE_SIZE);
+            int samples = 0;
+            int text = 0;
+            for (int i = 0; i < length; i += stride) {
+                int b = data[i] & 0xff;
+                counts[b]++;
+                samples++;
+                if ((b >= 0x20 && b < 0x7f) || b == '\n' || b == '\r' || b == '\t') {
+                    text++;
+                }
+            }
+            double entropy = 0;
+            for (int count : counts) {
+                if (count > 0) {
+                    double p = (double) count / samples;
+                    entropy -= p * Math.log(p) / Math.log(2);
+                }
+            }
+            boolean binary = samples > 0 && text < samples * 0.9;
+
+            if (entropy >= 7.95) {
+                return new BlockParameters(Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY, entropy);
+            }
+            if (entropy >= 7.5) {
+                switch (target) {
+                    case MAX_THROUGHPUT:
+                        return new BlockParameters(Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY, entropy);
+                    case BALANCED:
+                        return new BlockParameters(Deflater.BEST_SPEED, Deflater.HUFFMAN_ONLY, entropy);
+                    default:
+                        return new BlockParameters(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, entropy);
+                }
+            }
+            int strategy = binary && entropy >= 4 ? Deflater.FILTERED : Deflater.DEFAULT_STRATEGY;
+            switch (target) {
+                case MAX_THROUGHPUT:
+                    return new BlockParameters(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, entropy);
+                case BALANCED:
+                    return new BlockParameters(6, strategy, entropy);
+                default:
+                    return new BlockParameters(Deflater.BEST_COMPRESSION, strategy, entropy);
+            }
+        }
+
+        // "FP" subfield: level, strategy and entropy in hundredths of a bit
+        void writeSubfield(ByteBuffer header) {
+            header.put((byte) 'F').put((byte) 'P').putShort((short) 4)
+                    .put((byte) level).put((byte) strategy).putShort((short) Math.round(entropy * 100));
+        }
+
+        // Read the subfield back from a member header, or null when it has none
+        static BlockParameters readSubfield(ByteBuffer header) {
+            if (header.getShort(10) < 8 + ParallelGzip.PARAMETERS_SUBFIELD_SIZE
+                    || header.get(20) != 'F' || header.get(21) != 'P') {
+                return null;
+            }
+            return new BlockParameters(header.get(24), header.get(25), header.getShort(26) / 100.0);
+        }
+
+        @Override
+        public String toString() {
+            String name = strategy == Deflater.FILTERED ? "FILTERED"
+                    : strategy == Deflater.HUFFMAN_ONLY ? "HUFFMAN_ONLY" : "DEFAULT";
+            return String.format("level=%d strategy=%s entropy=%.2f", level, name, entropy);
+        }
+    }
+
+    // Receives live progress from a batch run
+    public interface BatchProgressListener {
+        void onProgress(BatchProgress progress);
+    }
+
+    // Point-in-time view of a batch run. Bytes are counted on the input side.
+    public static class BatchProgress {
+        private final long totalFiles;
+        private final long totalBytes;
+        private final long completedFiles;
+        private final long completedBytes;
+        private final long failedFiles;
+        private final long elapsedNanos;
+
+        BatchProgress(long totalFiles, long totalBytes, long completedFiles, long completedBytes,
+                      long failedFiles, long elapsedNanos) {
+            this.totalFiles = totalFiles;
+            this.totalBytes = totalBytes;
+            this.completedFiles = completedFiles;
+            this.completedBytes = completedBytes;
+            this.failedFiles = failedFiles;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getTotalFiles() {
+            return totalFiles;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getCompletedFiles() {
+            return completedFiles;
+        }
+
+        public long getCompletedBytes() {
+            return completedBytes;
+        }
+
+        public long getFailedFiles() {
+            return failedFiles;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : completedBytes * 1e9 / elapsedNanos;
+        }
+
+        public double getFilesPerSecond() {
+            return elapsedNanos == 0 ? 0 : completedFiles * 1e9 / elapsedNanos;
+        }
+
+        // Estimated seconds left at the current byte rate, or -1 before any progress
+        public long getEtaSeconds() {
+            double rate = getBytesPerSecond();
+            return rate == 0 ? -1 : (long) ((totalBytes - completedBytes) / rate);
+        }
+
+        public boolean isDone() {
+            return completedFiles + failedFiles == totalFiles;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d files, %.1f MB/s, %.0f files/s, ETA %ds",
+                    completedFiles, totalFiles, getBytesPerSecond() / (1 << 20), getFilesPerSecond(), getEtaSeconds());
+        }
+    }
+
+    // Compresses or decompresses a whole directory tree on a ForkJoinPool.
+    // Files at or above the large-file size get their own task whose blocks
+    // fan out across the pool; smaller files are split into groups by total
+    // size, so thousands of tiny files cost a handful of tasks.
+    public static class BatchCompressor {
+
+        static final long DEFAULT_LARGE_FILE_SIZE = 64L << 20;
+        static final long TASK_BYTES = 8L << 20;
+
+        private final int parallelism;
+        private final long largeFileSize;
+        private final BatchProgressListener listener;
+        private final long reportIntervalMillis;
+
+        public BatchCompressor(int parallelism, BatchProgressListener listener) {
+            this(parallelism, DEFAULT_LARGE_FILE_SIZE, listener, 1000);
+        }
+
+        public BatchCompressor(int parallelism, long largeFileSize, BatchProgressListener listener, long reportIntervalMillis) {
+            this.parallelism = parallelism;
+            this.largeFileSize = largeFileSize;
+            this.listener = listener;
+            this.reportIntervalMillis = reportIntervalMillis;
+        }
+
+        public BatchProgress compressDirectory(File sourceDir, File targetDir) throws IOException {
+            return run(sourceDir.toPath(), targetDir.toPath(), true);
+        }
+
+        public BatchProgress decompressDirectory(File sourceDir, File targetDir) throws IOException {
+            return run(sourceDir.toPath(), targetDir.toPath(), false);
+        }
+
+        private BatchProgress run(Path sourceDir, Path targetDir, boolean compress) throws IOException {
+            List<BatchItem> items;
+            try (Stream<Path> files = Files.walk(sourceDir)) {
+                items = files.filter(Files::isRegularFile)
+                        .filter(path -> compress || path.getFileName().toString().endsWith(".gz"))
+                        .map(path -> new BatchItem(path, targetPath(sourceDir, targetDir, path, compress)))
+                        .collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            BatchRun batch = new BatchRun(items, compress);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "batch-progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                if (listener != null) {
+                    reporter.scheduleAtFixedRate(() -> listener.onProgress(batch.snapshot()),
+                            reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+                pool.invoke(batch.rootTask(pool));
+            } finally {
+                reporter.shutdownNow();
+                pool.shutdownNow();
+            }
+
+            BatchProgress result = batch.snapshot();
+            if (listener != null) {
+                listener.onProgress(result);
+            }
+            if (!batch.failures.isEmpty()) {
+                IOException failure = new IOException(batch.failures.size() + " of " + items.size() + " files failed");
+                batch.failures.forEach(failure::addSuppressed);
+                throw failure;
+            }
+            return result;
+        }
+
+        private static Path targetPath(Path sourceDir, Path targetDir, Path file, boolean compress) {
+            String relative = sourceDir.relativize(file).toString();
+            return targetDir.resolve(compress ? relative + ".gz" : relative.substring(0, relative.length() - 3));
+        }
+
+        private static class BatchItem {
+            final Path source;
+            final Path target;
+            final long size;
+
+            BatchItem(Path source, Path target) {
+                this.source = source;
+                this.target = target;
+                this.size = source.toFile().length();
+            }
+        }
+
+        // State of one run: the work list, live counters and failures
+        private class BatchRun {
+            private final List<BatchItem> items;
+            private final boolean compress;
+            private final long totalBytes;
+            private final long startNanos = System.nanoTime();
+            private final AtomicLong completedFiles = new AtomicLong();
+            private final AtomicLong completedBytes = new AtomicLong();
+            private final ConcurrentLinkedQueue<IOException> failures = new ConcurrentLinkedQueue<>();
+
+            BatchRun(List<BatchItem> items, boolean compress) {
+                this.items = items;
+                this.compress = compress;
+                this.totalBytes = items.stream().mapToLong(item -> item.size).sum();
+            }
+
+            BatchProgress snapshot() {
+                return new BatchProgress(items.size(), totalBytes, completedFiles.get(), completedBytes.get(),
+                        failures.size(), System.nanoTime() - startNanos);
+            }
+
+            RecursiveAction rootTask(ForkJoinPool pool) {
+                List<BatchItem> small = new ArrayList<>();
+                List<RecursiveAction> tasks = new ArrayList<>();
+                for (BatchItem item : items) {
+                    if (item.size >= largeFileSize) {
+                        tasks.add(action(() -> process(item, pool)));
+                    } else {
+                        small.add(item);
+                    }
+                }
+                long[] prefix = new long[small.size() + 1];
+                for (int i = 0; i < small.size(); i++) {
+                    prefix[i + 1] = prefix[i] + small.get(i).size;
+                }
+                tasks.add(new GroupTask(small, prefix, 0, small.size()));
+                return action(() -> ForkJoinTask.invokeAll(tasks));
+            }
+
+            // Small files: halve the range by bytes until a group is small enough
+            private class GroupTask extends RecursiveAction {
+                private static final long serialVersionUID = 1L;
+
+                private final List<BatchItem> small;
+                private final long[] prefix;
+                private final int from;
+                private final int to;
+
+                GroupTask(List<BatchItem> small, long[] prefix, int from, int to) {
+                    this.small = small;
+                    this.prefix = prefix;
+                    this.from = from;
+                    this.to = to;
+                }
+
+                @Override
+                protected void compute() {
+                    if (to - from > 1 && prefix[to] - prefix[from] > TASK_BYTES) {
+                        long half = (prefix[from] + prefix[to]) / 2;
+                        int middle = from + 1;
+                        while (middle < to - 1 && prefix[middle] < half) {
+                            middle++;
+                        }
+                        invokeAll(new GroupTask(small, prefix, from, middle), new GroupTask(small, prefix, middle, to));
+                    } else {
+                        for (int i = from; i < to; i++) {
+                            process(small.get(i), null);
+                        }
+                    }
+                }
+            }
+
+            // Process one file; a pool means the file is large enough to split across it
+            private void process(BatchItem item, ForkJoinPool pool) {
+                try {
+                    Files.createDirectories(item.target.toAbsolutePath().getParent());
+                    if (compress) {
+                        compress(item, pool);
+                    } else {
+                        decompress(item, pool);
+                    }
+                    completedFiles.incrementAndGet();
+                } catch (IOException e) {
+                    failures.add(new IOException(item.source + ": " + e.getMessage(), e));
+                }
+            }
+
+            private void compress(BatchItem item, ForkJoinPool pool) throws IOException {
+                try (InputStream in = new CountingInputStream(new FileInputStream(item.source.toFile()), completedBytes);
+                     OutputStream out = new BufferedOutputStream(new FileOutputStream(item.target.toFile()), 1 << 16)) {
+                    if (pool == null) {
+                        CodecPool.SHARED.compress(in, out);
+                    } else {
+                        // Large files become indexed members so they can be split again on the way back
+                        ParallelGzip.compressMembers(in, out, ParallelGzip.DEFAULT_MEMBER_SIZE, pool, parallelism * 2)
+                                .writeTo(out);
+                    }
+                }
+            }
+
+            private void decompress(BatchItem item, ForkJoinPool pool) throws IOException {
+                if (pool == null) {
+                    try (InputStream in = new CountingInputStream(new FileInputStream(item.source.toFile()), completedBytes);
+                         OutputStream out = new FileOutputStream(item.target.toFile())) {
+                        CodecPool.SHARED.decompress(in, out);
+                    }
+                    return;
+                }
+                try (FileChannel source = FileChannel.open(item.source, StandardOpenOption.READ);
+                     FileChannel target = FileChannel.open(item.target, StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    GzipMemberIndex index = GzipMemberIndex.read(source);
+                    if (index != null) {
+                        ParallelGzip.decompressMembers(source, target, index, pool);
+                    } else {
+                        ChannelIo.inflate(source, target, IoOptions.DEFAULT);
+                    }
+                }
+                completedBytes.addAndGet(item.size);
+            }
+        }
+
+        private static RecursiveAction action(Runnable body) {
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    body.run();
+                }
+            };
+        }
+    }
+
+    // Adds every byte read to a shared counter
+    static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                counter.addAndGet(count);
+            }
+            return count;
+        }
+    }
+
+    // Counts what is written to it and throws it away
+    static class DiscardChannel implements WritableByteChannel {
+        private long count;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            count += length;
+            return length;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // CRC32C of every fixed-size block of a compressed file, kept in a
+    // separate file. Checking it needs no decompression, each block can be
+    // checked independently, and a mismatch names the exact byte range.
+    public static class ChecksumSidecar {
+
+        static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+        static final int MAGIC = 0x46434353;
+
+        // A damaged byte range of the compressed file
+        public static class Region {
+            private final long offset;
+            private final long length;
+
+            Region(long offset, long length) {
+                this.offset = offset;
+                this.length = length;
+            }
+
+            public long getOffset() {
+                return offset;
+            }
+
+            public long getLength() {
+                return length;
+            }
+
+            @Override
+            public String toString() {
+                return "bytes " + offset + "-" + (offset + length - 1);
+            }
+        }
+
+        static File sidecarFor(File file) {
+            return new File(file.getPath() + ".crc32c");
+        }
+
+        public static void write(File file, File sidecar, int blockSize) throws IOException {
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar), 1 << 16))) {
+                long length = source.size();
+                int blocks = (int) ((length + blockSize - 1) / blockSize);
+                out.writeInt(MAGIC);
+                out.writeInt(blockSize);
+                out.writeLong(length);
+                out.writeInt(blocks);
+                for (int block = 0; block < blocks; block++) {
+                    out.writeInt(checksum(source, (long) block * blockSize, blockSize));
+                }
+            }
+        }
+
+        // Check every block on its own thread; an empty list means the file is intact
+        public static List<Region> verify(File file, File sidecar, int threads) throws IOException {
+            int blockSize;
+            long length;
+            int[] expected;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 1 << 16))) {
+                if (in.readInt() != MAGIC) {
+                    throw new ZipException(sidecar + " is not a checksum sidecar");
+                }
+                blockSize = in.readInt();
+                length = in.readLong();
+                expected = new int[in.readInt()];
+                for (int block = 0; block < expected.length; block++) {
+                    expected[block] = in.readInt();
                 }
             }
+
+            List<Region> corrupt = new ArrayList<>();
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long actualLength = source.size();
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    List<Future<Integer>> checksums = new ArrayList<>(expected.length);
+                    for (int block = 0; block < expected.length; block++) {
+                        long offset = (long) block * blockSize;
+                        checksums.add(executor.submit(() -> offset < actualLength ? checksum(source, offset, blockSize) : null));
+                    }
+                    for (int block = 0; block < expected.length; block++) {
+                        Integer actual = ParallelGzip.await(checksums.get(block));
+                        long offset = (long) block * blockSize;
+                        if (actual == null || actual != expected[block]) {
+                            corrupt.add(new Region(offset, Math.min(blockSize, length - offset)));
+                        }
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+                if (actualLength > length) {
+                    corrupt.add(new Region(length, actualLength - length));
+                }
+            }
+            return corrupt;
+        }
+
+        // CRC32C of one block, read through a mapping so nothing is copied
+        private static int checksum(FileChannel source, long offset, int blockSize) throws IOException {
+            long length = Math.min(blockSize, source.size() - offset);
+            CRC32C crc = new CRC32C();
+            crc.update(source.map(FileChannel.MapMode.READ_ONLY, offset, length));
+            return (int) crc.getValue();
+        }
+    }
+
+    // Offsets of the members of a multi-member file. The index is stored after
+    // the data as empty gzip members whose "FI" extra subfields carry the
+    // entries, followed by a fixed-size member whose "FT" subfield points back
+    // at them. Gzip readers see only empty members and skip them.
+    public static class GzipMemberIndex {
+
+        static final int TRAILER_SIZE = 50;
+        private static final int ENTRY_SIZE = 16;
+        private static final int ENTRIES_PER_MEMBER = 4095;
+
+        private long[] compressedOffsets = new long[64];
+        private long[] uncompressedOffsets = new long[64];
+        private int count;
+        private long compressedLength;
+        private long uncompressedLength;
+
+        // Record the next member; offsets follow from the previous totals
+        void append(long memberLength, long blockLength) {
+            add(compressedLength, uncompressedLength);
+            compressedLength += memberLength;
+            uncompressedLength += blockLength;
+        }
+
+        private void add(long compressedOffset, long uncompressedOffset) {
+            if (count == compressedOffsets.length) {
+                compressedOffsets = Arrays.copyOf(compressedOffsets, count * 2);
+                uncompressedOffsets = Arrays.copyOf(uncompressedOffsets, count * 2);
+            }
+            compressedOffsets[count] = compressedOffset;
+            uncompressedOffsets[count] = uncompressedOffset;
+            count++;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public long compressedOffset(int member) {
+            return compressedOffsets[member];
+        }
+
+        public long compressedLength(int member) {
+            return (member + 1 < count ? compressedOffsets[member + 1] : compressedLength) - compressedOffsets[member];
+        }
+
+        public long uncompressedOffset(int member) {
+            return uncompressedOffsets[member];
+        }
+
+        public long uncompressedLength(int member) {
+            return (member + 1 < count ? uncompressedOffsets[member + 1] : uncompressedLength) - uncompressedOffsets[member];
+        }
+
+        // Total length of the decompressed data
+        public long uncompressedLength() {
+            return uncompressedLength;
+        }
+
+        // Member holding the given uncompressed offset
+        public int findMember(long uncompressedOffset) {
+            int member = Arrays.binarySearch(uncompressedOffsets, 0, count, uncompressedOffset);
+            return member >= 0 ? member : -member - 2;
+        }
+
+        // Append the index members and the trailer after the data members
+        void writeTo(OutputStream out) throws IOException {
+            for (int start = 0; start < count; start += ENTRIES_PER_MEMBER) {
+                int entries = Math.min(ENTRIES_PER_MEMBER, count - start);
+                ByteBuffer payload = ByteBuffer.allocate(entries * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = start; i < start + entries; i++) {
+                    payload.putLong(compressedOffsets[i]).putLong(uncompressedOffsets[i]);
+                }
+                writeEmptyMember(out, 'I', payload.array());
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putLong(compressedLength).putLong(count).putLong(uncompressedLength);
+            writeEmptyMember(out, 'T', trailer.array());
+        }
+
+        private static void writeEmptyMember(OutputStream out, char subfield, byte[] payload) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+                    .put((byte) 0x1f).put((byte) 0x8b).put((byte) Deflater.DEFLATED).put((byte) ParallelGzip.FEXTRA)
+                    .putInt(0).put((byte) 0).put((byte) 0)
+                    .putShort((short) (payload.length + 4)).put((byte) 'F').put((byte) subfield)
+                    .putShort((short) payload.length);
+            out.write(header.array());
+            out.write(payload);
+            out.write(ParallelGzip.FINAL_BLOCK);
+            out.write(new byte[8]);
+        }
+
+        // Load the index of a multi-member file from its trailer, or by walking
+        // the member headers when the trailer is missing. Returns null for any
+        // other gzip file.
+        public static GzipMemberIndex read(FileChannel channel) throws IOException {
+            GzipMemberIndex index = readTrailer(channel);
+            return index != null ? index : scanMembers(channel);
+        }
+
+        private static GzipMemberIndex readTrailer(FileChannel channel) throws IOException {
+            long size = channel.size();
+            if (size < TRAILER_SIZE) {
+                return null;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            ParallelGzip.readFully(channel, trailer, size - TRAILER_SIZE);
+            if (!isEmptyMember(trailer, 0, 'T') || trailer.getShort(14) != 24) {
+                return null;
+            }
+            long indexOffset = trailer.getLong(16);
+            long memberCount = trailer.getLong(24);
+            long indexLength = size - TRAILER_SIZE - indexOffset;
+            if (indexOffset < 0 || indexLength < 0 || memberCount < 0
+                    || indexLength > memberCount * ENTRY_SIZE + (memberCount / ENTRIES_PER_MEMBER + 1) * 26) {
+                return null;
+            }
+
+            ByteBuffer members = ByteBuffer.allocate((int) indexLength).order(ByteOrder.LITTLE_ENDIAN);
+            ParallelGzip.readFully(channel, members, indexOffset);
+            GzipMemberIndex index = new GzipMemberIndex();
+            int position = 0;
+            while (position < indexLength) {
+                if (!isEmptyMember(members, position, 'I')) {
+                    return null;
+                }
+                int payloadLength = members.getShort(position + 14) & 0xffff;
+                for (int entry = position + 16; entry < position + 16 + payloadLength; entry += ENTRY_SIZE) {
+                    index.add(members.getLong(entry), members.getLong(entry + 8));
+                }
+                position += 16 + payloadLength + 10;
+            }
+            if (index.count != memberCount) {
+                return null;
+            }
+            index.compressedLength = indexOffset;
+            index.uncompressedLength = trailer.getLong(32);
+            return index;
+        }
+
+        private static boolean isEmptyMember(ByteBuffer buffer, int position, char subfield) {
+            return buffer.limit() - position >= 16
+                    && buffer.getShort(position) == (short) 0x8b1f
+                    && buffer.get(position + 2) == Deflater.DEFLATED
+                    && buffer.get(position + 3) == ParallelGzip.FEXTRA
+                    && buffer.get(position + 12) == 'F'
+                    && buffer.get(position + 13) == subfield
+                    && (buffer.getShort(position + 10) & 0xffff) == (buffer.getShort(position + 14) & 0xffff) + 4;
+        }
+
+        // Hop from member to member using the length stored in each "FC" subfield
+        private static GzipMemberIndex scanMembers(FileChannel channel) throws IOException {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(ParallelGzip.MEMBER_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer isize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            GzipMemberIndex index = new GzipMemberIndex();
+            long position = 0;
+            while (position < size) {
+                if (size - position < 16) {
+                    return null;
+                }
+                header.clear();
+                header.limit((int) Math.min(header.capacity(), size - position));
+                ParallelGzip.readFully(channel, header, position);
+                if (isEmptyMember(header, 0, 'I') || isEmptyMember(header, 0, 'T')) {
+                    break;
+                }
+                if (header.limit() < ParallelGzip.MEMBER_HEADER_SIZE
+                        || header.getShort(0) != (short) 0x8b1f || header.get(3) != ParallelGzip.FEXTRA
+                        || header.getShort(10) < 8 || header.get(12) != 'F' || header.get(13) != 'C') {
+                    return null;
+                }
+                long memberLength = header.getInt(16) & 0xffffffffL;
+                if (memberLength < ParallelGzip.MEMBER_HEADER_SIZE + 8 || position + memberLength > size) {
+                    return null;
+                }
+                isize.clear();
+                ParallelGzip.readFully(channel, isize, position + memberLength - 4);
+                index.append(memberLength, isize.getInt(0) & 0xffffffffL);
+                position += memberLength;
+            }
+            return index.count > 0 || position > 0 ? index : null;
         }
     }
 
@@ -98,6 +2181,229 @@ public class FileCompressorTest {
             assertTrue(decompressedFile.exists(), "Decompressed file should exist.");
             assertArrayEquals(Files.readAllBytes(testFile.toPath()), Files.readAllBytes(decompressedFile.toPath()), "Decompressed content should match original content.");
         }
+
+        @Test
+        public void testChannelIoRoundTrip() throws IOException {
+            byte[] content = new byte[300_000];
+            new Random(3).nextBytes(content);
+            Arrays.fill(content, 0, 150_000, (byte) 'z');
+            Files.write(testFile.toPath(), content);
+
+            // A small mapping window forces headers and data across several windows
+            for (IoOptions options : new IoOptions[] {new IoOptions(4096, 8192), new IoOptions(4096, 0), IoOptions.DEFAULT}) {
+                FileCompressor.compressFile(testFile, compressedFile, options);
+                FileCompressor.decompressFile(compressedFile, decompressedFile);
+                assertArrayEquals(content, Files.readAllBytes(decompressedFile.toPath()), "Channel output should be plain gzip.");
+
+                FileCompressor.decompressFile(compressedFile, decompressedFile, options);
+                assertArrayEquals(content, Files.readAllBytes(decompressedFile.toPath()), "Channel input should round-trip.");
+            }
+        }
+
+        @Test
+        public void testInMemoryAndStreamRoundTrip() throws IOException {
+            byte[] payload = "payload payload payload 0123456789".repeat(5000).getBytes();
+
+            byte[] compressed = FileCompressor.compress(payload);
+            assertArrayEquals(payload, FileCompressor.decompress(compressed), "Byte arrays should round-trip.");
+            try (GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                assertArrayEquals(payload, gzis.readAllBytes(), "In-memory output should be plain gzip.");
+            }
+
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            FileCompressor.compress(new ByteArrayInputStream(payload), streamed);
+            ByteArrayOutputStream restored = new ByteArrayOutputStream();
+            FileCompressor.decompress(new ByteArrayInputStream(streamed.toByteArray()), restored);
+            assertArrayEquals(payload, restored.toByteArray(), "Streams should round-trip.");
+
+            assertArrayEquals(new byte[0], FileCompressor.decompress(FileCompressor.compress(new byte[0])), "Empty payloads should round-trip.");
+        }
+
+        @Test
+        public void testDirectoryRoundTrip() throws IOException {
+            Path source = Files.createTempDirectory("batchSource");
+            Path compressed = Files.createTempDirectory("batchCompressed");
+            Path restored = Files.createTempDirectory("batchRestored");
+            try {
+                Random random = new Random(5);
+                Files.createDirectories(source.resolve("nested/deeper"));
+                for (int i = 0; i < 40; i++) {
+                    Files.write(source.resolve((i % 2 == 0 ? "nested/" : "nested/deeper/") + "small" + i + ".txt"),
+                            ("file " + i + " ").repeat(i * 10).getBytes());
+                }
+                byte[] large = new byte[300_000];
+                random.nextBytes(large);
+                Files.write(source.resolve("large.bin"), large);
+
+                ConcurrentLinkedQueue<BatchProgress> reports = new ConcurrentLinkedQueue<>();
+                BatchCompressor batch = new BatchCompressor(4, 100_000, reports::add, 10);
+                BatchProgress result = batch.compressDirectory(source.toFile(), compressed.toFile());
+                assertEquals(41L, result.getCompletedFiles(), "Every file should be compressed.");
+                assertEquals(result.getTotalBytes(), result.getCompletedBytes(), "Every input byte should be counted.");
+                assertFalse(reports.isEmpty(), "The listener should receive progress.");
+                assertTrue(result.isDone(), "The final report should be complete.");
+
+                batch.decompressDirectory(compressed.toFile(), restored.toFile());
+                try (Stream<Path> files = Files.walk(source)) {
+                    for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(restored.resolve(source.relativize(file))),
+                                "Restored tree should match the source.");
+                    }
+                }
+            } finally {
+                for (Path dir : new Path[] {source, compressed, restored}) {
+                    try (Stream<Path> files = Files.walk(dir)) {
+                        files.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+                    }
+                }
+            }
+        }
+
+        @Test
+        public void testParallelCompressRoundTrip() throws IOException {
+            // Mix repetitive and random content over many blocks
+            byte[] content = new byte[1_000_000];
+            Random random = new Random(42);
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (i / 4096) % 2 == 0 ? (byte) ('a' + i % 26) : (byte) random.nextInt(256);
+            }
+            Files.write(testFile.toPath(), content);
+
+            FileCompressor.compressFileParallel(testFile, compressedFile, ParallelGzip.DICTIONARY_SIZE, 4);
+            FileCompressor.decompressFile(compressedFile, decompressedFile);
+
+            assertArrayEquals(content, Files.readAllBytes(decompressedFile.toPath()), "Parallel output should round-trip.");
+        }
+
+        @Test
+        public void testMultiMemberParallelRoundTrip() throws IOException {
+            byte[] content = new byte[700_000];
+            new Random(7).nextBytes(content);
+            Arrays.fill(content, 100_000, 400_000, (byte) 'x');
+            Files.write(testFile.toPath(), content);
+
+            FileCompressor.compressFileMultiMember(testFile, compressedFile, 64 * 1024, 4);
+            FileCompressor.decompressFileParallel(compressedFile, decompressedFile, 4);
+            assertArrayEquals(content, Files.readAllBytes(decompressedFile.toPath()), "Members should decompress in parallel.");
+
+            // The members and the index must still read as plain gzip
+            FileCompressor.decompressFile(compressedFile, decompressedFile);
+            assertArrayEquals(content, Files.readAllBytes(decompressedFile.toPath()), "Multi-member output should stay gzip-compatible.");
+        }
+
+        @Test
+        public void testAdaptiveCompression() throws IOException {
+            // One block of random bytes followed by one block of repetitive log lines
+            byte[] content = new byte[2 * ParallelGzip.DEFAULT_MEMBER_SIZE];
+            new Random(9).nextBytes(content);
+            byte[] log = "2024-01-01 INFO request served in 12 ms\n".repeat(30_000).getBytes();
+            System.arraycopy(log, 0, content, ParallelGzip.DEFAULT_MEMBER_SIZE, ParallelGzip.DEFAULT_MEMBER_SIZE);
+            Files.write(testFile.toPath(), content);
+
+            for (CompressionTarget target : CompressionTarget.values()) {
+                FileCompressor.compressFileAdaptive(testFile, compressedFile, target);
+                FileCompressor.decompressFile(compressedFile, decompressedFile);
+                assertArrayEquals(content, Files.readAllBytes(decompressedFile.toPath()), "Adaptive output should round-trip.");
+
+                List<BlockParameters> parameters = FileCompressor.readBlockParameters(compressedFile);
+                assertEquals(Deflater.NO_COMPRESSION, parameters.get(0).getLevel(), "Random data should be stored.");
+                assertTrue(parameters.get(1).getEntropy() < 5, "Log lines should have low entropy.");
+            }
+            assertEquals(Deflater.BEST_COMPRESSION, FileCompressor.readBlockParameters(compressedFile).get(1).getLevel());
+        }
+
+        @Test
+        public void testDeduplicatedSnapshots() throws IOException {
+            Path store = Files.createTempDirectory("dedupStore");
+            File manifest = File.createTempFile("snapshot", ".manifest");
+            try {
+                byte[] first = new byte[600_000];
+                new Random(13).nextBytes(first);
+                // The next day's snapshot has a few bytes inserted in the middle
+                byte[] second = new byte[first.length + 100];
+                System.arraycopy(first, 0, second, 0, 300_000);
+                System.arraycopy(first, 300_000, second, 300_100, 300_000);
+
+                Files.write(testFile.toPath(), first);
+                DedupStore.StoreResult firstResult = FileCompressor.compressFileDeduplicated(testFile, manifest, store.toFile());
+                assertEquals(firstResult.getChunks(), firstResult.getNewChunks(), "A fresh store should keep every chunk.");
+                FileCompressor.decompressFile(manifest, decompressedFile);
+                assertArrayEquals(first, Files.readAllBytes(decompressedFile.toPath()), "First snapshot should be restored.");
+
+                Files.write(testFile.toPath(), second);
+                DedupStore.StoreResult secondResult = FileCompressor.compressFileDeduplicated(testFile, manifest, store.toFile());
+                assertTrue(secondResult.getNewBytes() < first.length / 10, "Only the chunks around the insertion should be new.");
+                FileCompressor.decompressFile(manifest, decompressedFile);
+                assertArrayEquals(second, Files.readAllBytes(decompressedFile.toPath()), "Second snapshot should be restored.");
+            } finally {
+                manifest.delete();
+                try (Stream<Path> files = Files.walk(store)) {
+                    files.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+
+        @Test
+        public void testVerifyDetectsCorruption() throws IOException {
+            byte[] content = "verify me ".repeat(50_000).getBytes();
+            Files.write(testFile.toPath(), content);
+
+            FileCompressor.compressFile(testFile, compressedFile);
+            assertEquals(content.length, FileCompressor.verifyFile(compressedFile), "Intact file should verify.");
+            FileCompressor.compressFileMultiMember(testFile, compressedFile, 64 * 1024, 2);
+            assertEquals(content.length, FileCompressor.verifyFile(compressedFile, 2), "Intact members should verify.");
+
+            File sidecar = FileCompressor.writeChecksums(compressedFile);
+            try {
+                assertTrue(FileCompressor.verifyChecksums(compressedFile).isEmpty(), "Untouched file should match its sidecar.");
+
+                // Flip one byte inside the second member's compressed data
+                byte[] compressed = Files.readAllBytes(compressedFile.toPath());
+                int damaged = compressed.length / 3;
+                compressed[damaged] ^= 0x55;
+                Files.write(compressedFile.toPath(), compressed);
+
+                assertThrows(IOException.class, () -> FileCompressor.verifyFile(compressedFile, 2));
+                List<ChecksumSidecar.Region> regions = FileCompressor.verifyChecksums(compressedFile);
+                assertEquals(1, regions.size(), "Exactly one block should be reported.");
+                assertTrue(regions.get(0).getOffset() <= damaged && damaged < regions.get(0).getOffset() + regions.get(0).getLength(),
+                        "The reported region should contain the damaged byte.");
+            } finally {
+                sidecar.delete();
+            }
+        }
+
+        @Test
+        public void testReadRange() throws IOException {
+            byte[] content = new byte[500_000];
+            new Random(11).nextBytes(content);
+            Files.write(testFile.toPath(), content);
+            FileCompressor.compressFileMultiMember(testFile, compressedFile, 64 * 1024, 2);
+
+            // Across a member boundary, inside one member, and past the end
+            assertArrayEquals(Arrays.copyOfRange(content, 60_000, 200_000), FileCompressor.readRange(compressedFile, 60_000, 140_000));
+            assertArrayEquals(Arrays.copyOfRange(content, 65_536, 65_540), FileCompressor.readRange(compressedFile, 65_536, 4));
+            assertArrayEquals(Arrays.copyOfRange(content, 499_000, 500_000), FileCompressor.readRange(compressedFile, 499_000, 4096));
+            assertEquals(0, FileCompressor.readRange(compressedFile, 600_000, 10).length);
+        }
+
+        @Test
+        public void testParallelDecompressSingleMember() throws IOException {
+            FileCompressor.compressFile(testFile, compressedFile);
+            FileCompressor.decompressFileParallel(compressedFile, decompressedFile, 4);
+
+            assertArrayEquals(Files.readAllBytes(testFile.toPath()), Files.readAllBytes(decompressedFile.toPath()), "Single-member input should use the sequential path.");
+        }
+
+        @Test
+        public void testParallelCompressEmptyFile() throws IOException {
+            Files.write(testFile.toPath(), new byte[0]);
+
+            FileCompressor.compressFileParallel(testFile, compressedFile);
+            FileCompressor.decompressFile(compressedFile, decompressedFile);
+
+            assertEquals(0L, decompressedFile.length(), "Empty input should decompress to an empty file.");
+        }
     }
 
     // Entry point for running the FileCompressor utility
@@ -1,8 +1,57 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
 // Logger class using Singleton pattern
 class Logger {
     // Private static variable that stores the single instance of Logger
     private static Logger instance;
     
+    // Background writer; null while logging synchronously to the console
+    private volatile AsyncLogWriter asyncWriter;
+    
+    // Binary log file; null unless binary logging is running
+    private volatile BinaryLogWriter binaryWriter;
+    
+    // Messages below this level are discarded before any formatting
+    private volatile Level threshold = Level.INFO;
+    
+    // Per-thread builder for synchronous formatting
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    
     // Private constructor to prevent instantiation from other classes
     private Logger() {
         // Initialize logger resources, if any
@@ -22,9 +71,1260 @@ class Logger {
     
     // Method to log messages
     public void log(String message) {
+        BinaryLogWriter binary = binaryWriter;
+        if (binary != null) {
+            binary.write(Level.INFO, "{}", message, null, null, 1);
+            return;
+        }
+        AsyncLogWriter writer = asyncWriter;
+        // A writer that is being shut down refuses the message; print it instead
+        if (writer != null && writer.publish(message)) {
+            return;
+        }
         // For simplicity, we're just printing the message to the console
         System.out.println("Log: " + message);
     }
+
+    public void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold.ordinal();
+    }
+
+    // Log a message at a level
+    public void log(Level level, String message) {
+        if (isEnabled(level)) {
+            BinaryLogWriter binary = binaryWriter;
+            if (binary != null) {
+                binary.write(level, "{}", message, null, null, 1);
+            } else {
+                log(message);
+            }
+        }
+    }
+
+    // Parameterized messages: each "{}" in the pattern is replaced by the next
+    // argument, but only once the level check has passed. In asynchronous mode
+    // the message is formatted straight into the ring slot, so a call with
+    // String, number or boolean arguments allocates nothing. In binary mode
+    // the pattern is the template and the arguments are stored unformatted.
+    public void log(Level level, String pattern, Object a) {
+        if (isEnabled(level)) {
+            write(level, pattern, a, null, null, 1);
+        }
+    }
+
+    // Primitive form, so numeric arguments are not boxed
+    public void log(Level level, String pattern, long a) {
+        if (isEnabled(level)) {
+            BinaryLogWriter binary = binaryWriter;
+            if (binary != null) {
+                binary.write(level, pattern, a);
+                return;
+            }
+            AsyncLogWriter writer = asyncWriter;
+            if (writer == null || !writer.publish(pattern, a)) {
+                print(MessageFormatter.format(builder(), pattern, a));
+            }
+        }
+    }
+
+    public void log(Level level, String pattern, Object a, Object b) {
+        if (isEnabled(level)) {
+            write(level, pattern, a, b, null, 2);
+        }
+    }
+
+    public void log(Level level, String pattern, Object a, Object b, Object c) {
+        if (isEnabled(level)) {
+            write(level, pattern, a, b, c, 3);
+        }
+    }
+
+    // Any number of arguments; the varargs array is the only allocation
+    public void log(Level level, String pattern, Object... args) {
+        if (isEnabled(level)) {
+            BinaryLogWriter binary = binaryWriter;
+            if (binary != null) {
+                binary.write(level, pattern, args);
+                return;
+            }
+            AsyncLogWriter writer = asyncWriter;
+            if (writer == null || !writer.publish(pattern, args)) {
+                print(MessageFormatter.format(builder(), pattern, args));
+            }
+        }
+    }
+
+    // Message built by the supplier, which is only called when the level is enabled
+    public void log(Level level, Supplier<String> message) {
+        if (isEnabled(level)) {
+            log(level, message.get());
+        }
+    }
+
+    private void write(Level level, String pattern, Object a, Object b, Object c, int count) {
+        BinaryLogWriter binary = binaryWriter;
+        if (binary != null) {
+            binary.write(level, pattern, a, b, c, count);
+            return;
+        }
+        AsyncLogWriter writer = asyncWriter;
+        if (writer == null || !writer.publish(pattern, a, b, c, count)) {
+            print(MessageFormatter.format(builder(), pattern, a, b, c, count));
+        }
+    }
+
+    private static StringBuilder builder() {
+        StringBuilder builder = BUILDER.get();
+        // Don't keep a huge buffer alive because of one long message
+        if (builder.capacity() > 64 * 1024) {
+            builder = new StringBuilder(256);
+            BUILDER.set(builder);
+        }
+        builder.setLength(0);
+        return builder;
+    }
+
+    private static void print(StringBuilder message) {
+        System.out.println(message.insert(0, "Log: "));
+    }
+
+    // Switch to asynchronous logging: callers only copy the message into a
+    // ring buffer and a background thread writes batches to the appender
+    public synchronized void startAsync(LogAppender appender, int capacity, WaitStrategy waitStrategy,
+                                        OverflowPolicy overflowPolicy) {
+        if (asyncWriter != null || binaryWriter != null) {
+            throw new IllegalStateException("Asynchronous or binary logging is already running");
+        }
+        asyncWriter = new AsyncLogWriter(appender, capacity, waitStrategy, overflowPolicy);
+    }
+
+    // Switch to binary logging: messages are stored as template ID, timestamp
+    // delta and raw arguments instead of formatted text. Read the file back
+    // with BinaryLogDecoder.
+    public synchronized void startBinary(File file) throws IOException {
+        if (asyncWriter != null || binaryWriter != null) {
+            throw new IllegalStateException("Asynchronous or binary logging is already running");
+        }
+        binaryWriter = new BinaryLogWriter(file);
+    }
+
+    // Asynchronous logging to a file with sensible defaults
+    public void startAsync(File file) throws IOException {
+        startAsync(new FileAppender(file), 64 * 1024, WaitStrategy.PARK, OverflowPolicy.BLOCK);
+    }
+
+    // Asynchronous logging to memory-mapped segment files that roll over when
+    // full or older than maxAgeMillis (0 = size only)
+    public void startRolling(File directory, String baseName, int segmentSize, long maxAgeMillis,
+                             boolean compressRolled) throws IOException {
+        startAsync(new RollingMappedFileAppender(directory, baseName, segmentSize, maxAgeMillis, compressRolled),
+                64 * 1024, WaitStrategy.PARK, OverflowPolicy.BLOCK);
+    }
+
+    // Write out everything still queued, close the appender and go back to the console
+    public synchronized void shutdown() {
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            // The writer stops accepting before it drains, so a caller that
+            // still holds it prints to the console instead of losing the message
+            writer.shutdown();
+            asyncWriter = null;
+        }
+        BinaryLogWriter binary = binaryWriter;
+        if (binary != null) {
+            binaryWriter = null;
+            binary.close();
+        }
+    }
+
+    // Messages dropped because the ring buffer was full
+    public long getDroppedCount() {
+        AsyncLogWriter writer = asyncWriter;
+        return writer != null ? writer.getDroppedCount() : 0;
+    }
+}
+
+// Severity of a log message, lowest first
+enum Level {
+    TRACE, DEBUG, INFO, WARN, ERROR
+}
+
+// Replaces "{}" placeholders with arguments. Strings, numbers, booleans and
+// characters are appended directly so formatting them allocates nothing;
+// other objects go through toString(). Extra placeholders stay as "{}".
+final class MessageFormatter {
+    private MessageFormatter() {
+    }
+
+    static StringBuilder format(StringBuilder out, String pattern, Object a, Object b, Object c, int count) {
+        int start = 0;
+        for (int arg = 0; arg < count; arg++) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            out.append(pattern, start, placeholder);
+            appendArgument(out, arg == 0 ? a : arg == 1 ? b : c);
+            start = placeholder + 2;
+        }
+        return out.append(pattern, start, pattern.length());
+    }
+
+    static StringBuilder format(StringBuilder out, String pattern, long a) {
+        int placeholder = pattern.indexOf("{}");
+        if (placeholder < 0) {
+            return out.append(pattern);
+        }
+        return out.append(pattern, 0, placeholder).append(a).append(pattern, placeholder + 2, pattern.length());
+    }
+
+    static StringBuilder format(StringBuilder out, String pattern, Object[] args) {
+        int start = 0;
+        for (Object arg : args) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            out.append(pattern, start, placeholder);
+            appendArgument(out, arg);
+            start = placeholder + 2;
+        }
+        return out.append(pattern, start, pattern.length());
+    }
+
+    private static void appendArgument(StringBuilder out, Object arg) {
+        if (arg instanceof CharSequence) {
+            out.append((CharSequence) arg);
+        } else if (arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte) {
+            out.append(((Number) arg).longValue());
+        } else if (arg instanceof Double || arg instanceof Float) {
+            out.append(((Number) arg).doubleValue());
+        } else if (arg instanceof Boolean) {
+            out.append(((Boolean) arg).booleanValue());
+        } else if (arg instanceof Character) {
+            out.append(((Character) arg).charValue());
+        } else {
+            out.append(arg);
+        }
+    }
+}
+
+// Destination for formatted log lines
+interface LogAppender {
+    // Append one line; the appender adds the line separator
+    void append(CharSequence line) throws IOException;
+
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
+
+// UTF-8 encoding of a CharSequence straight into a ByteBuffer, so appenders
+// never create a String or an encoder buffer. Unpaired surrogates become '?'.
+final class Utf8 {
+    private Utf8() {
+    }
+
+    // Number of bytes the text encodes to
+    static int length(CharSequence text) {
+        int length = text.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // Encode text from index from until it ends or the buffer is full;
+    // returns the index of the first character not written
+    static int encode(CharSequence text, int from, ByteBuffer out) {
+        int length = text.length();
+        for (int i = from; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (!out.hasRemaining()) {
+                    return i;
+                }
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                if (out.remaining() < 2) {
+                    return i;
+                }
+                out.put((byte) (0xc0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                if (out.remaining() < 4) {
+                    return i;
+                }
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                out.put((byte) (0xf0 | codePoint >> 18));
+                out.put((byte) (0x80 | codePoint >> 12 & 0x3f));
+                out.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+                out.put((byte) (0x80 | codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (!out.hasRemaining()) {
+                    return i;
+                }
+                out.put((byte) '?');
+            } else {
+                if (out.remaining() < 3) {
+                    return i;
+                }
+                out.put((byte) (0xe0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3f));
+                out.put((byte) (0x80 | c & 0x3f));
+            }
+        }
+        return length;
+    }
+}
+
+// Appender that writes to a file through a large buffer
+class FileAppender implements LogAppender {
+    private final OutputStream out;
+    private final ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+
+    public FileAppender(File file) throws IOException {
+        out = new FileOutputStream(file, true);
+    }
+
+    @Override
+    public void append(CharSequence line) throws IOException {
+        int next = 0;
+        while ((next = Utf8.encode(line, next, buffer)) < line.length()) {
+            flushBuffer();
+        }
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) '\n');
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+}
+
+// Appender that copies lines into a memory-mapped segment file, so a record
+// costs a memory copy rather than a write() call. Records are in the page
+// cache as soon as they are copied, so a JVM crash loses nothing that was
+// appended; segments are forced to disk when they are closed.
+//
+// Segments are named <baseName>-000001.log, ... and roll over when the next
+// line does not fit or the segment is older than maxAgeMillis (checked on
+// append). The next segment is created, mapped and touched page by page on a
+// background thread ahead of time, so rolling over only swaps two mappings.
+// Closed segments are unmapped, truncated to their content and, optionally,
+// gzipped to <name>.log.gz on the same background thread. Windows refuses to
+// truncate or delete a file that is still mapped, so mappings are released
+// explicitly rather than left to the garbage collector. Not thread-safe:
+// meant to sit behind AsyncLogWriter's single consumer.
+class RollingMappedFileAppender implements LogAppender {
+    private static final int PAGE_SIZE = 4096;
+
+    // One mapped segment file
+    private static final class Segment {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final long openedAt = System.currentTimeMillis();
+
+        Segment(File file, FileChannel channel, MappedByteBuffer map) {
+            this.file = file;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        // Write the mapping back, release it and cut the file to what was written
+        void finish() throws IOException {
+            map.force();
+            int length = map.position();
+            unmap(map);
+            channel.truncate(length);
+            channel.close();
+        }
+
+        // Remove a segment that was never written to
+        void discard() throws IOException {
+            unmap(map);
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private final File directory;
+    private final String baseName;
+    private final int segmentSize;
+    private final long maxAgeMillis;
+    private final boolean compressRolled;
+    private final ExecutorService background;
+    private Segment current;
+    private Future<Segment> next;
+    private long nextIndex;
+
+    public RollingMappedFileAppender(File directory, String baseName, int segmentSize, long maxAgeMillis,
+                                     boolean compressRolled) throws IOException {
+        if (segmentSize < PAGE_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at least " + PAGE_SIZE + ": " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+        this.directory = directory;
+        this.baseName = baseName;
+        this.segmentSize = segmentSize;
+        this.maxAgeMillis = maxAgeMillis;
+        this.compressRolled = compressRolled;
+        background = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "log-segment-roller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        nextIndex = lastIndex() + 1;
+        current = allocate(nextIndex++);
+        preallocateNext();
+    }
+
+    @Override
+    public void append(CharSequence line) throws IOException {
+        MappedByteBuffer map = current.map;
+        if (map.position() > 0 && maxAgeMillis > 0 && System.currentTimeMillis() - current.openedAt >= maxAgeMillis) {
+            map = roll();
+        }
+        int bytes = Utf8.length(line) + 1;
+        if (bytes > map.remaining() && map.position() > 0) {
+            map = roll();
+        }
+        if (bytes > map.remaining()) {
+            // Longer than a whole segment: keep what fits
+            map.limit(map.capacity() - 1);
+            Utf8.encode(line, 0, map);
+            map.limit(map.capacity());
+        } else {
+            Utf8.encode(line, 0, map);
+        }
+        map.put((byte) '\n');
+    }
+
+    // Nothing to do: appended records are already in the page cache
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            await(next).discard();
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            current.finish();
+        }
+    }
+
+    // Switch to the preallocated segment and hand the full one to the background thread
+    private MappedByteBuffer roll() throws IOException {
+        Segment closed = current;
+        current = await(next);
+        preallocateNext();
+        background.execute(() -> {
+            try {
+                closed.finish();
+                if (compressRolled) {
+                    compress(closed.file);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        return current.map;
+    }
+
+    private void preallocateNext() {
+        long index = nextIndex++;
+        next = background.submit(() -> allocate(index));
+    }
+
+    private Segment allocate(long index) throws IOException {
+        File file = new File(directory, String.format("%s-%06d.log", baseName, index));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        // Touch every page so appends don't take the page faults
+        for (int offset = 0; offset < segmentSize; offset += PAGE_SIZE) {
+            map.put(offset, (byte) 0);
+        }
+        return new Segment(file, channel, map);
+    }
+
+    // Unmap now instead of when the buffer is garbage collected. The buffer
+    // must not be touched afterwards. On a JVM without sun.misc.Unsafe the
+    // mapping stays until collection, which only matters on Windows.
+    private static void unmap(MappedByteBuffer map) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), map);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Leave it to the garbage collector
+        }
+    }
+
+    private static Segment await(Future<Segment> segment) throws IOException {
+        try {
+            return segment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while preparing the next log segment", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not prepare the next log segment", e.getCause());
+        }
+    }
+
+    // Highest segment number already in the directory, plain or gzipped
+    private long lastIndex() {
+        long last = 0;
+        String prefix = baseName + "-";
+        String[] names = directory.list();
+        if (names == null) {
+            return last;
+        }
+        for (String name : names) {
+            int end = name.endsWith(".log") ? name.length() - 4 : name.endsWith(".log.gz") ? name.length() - 7 : -1;
+            if (name.startsWith(prefix) && end > prefix.length()) {
+                try {
+                    last = Math.max(last, Long.parseLong(name.substring(prefix.length(), end)));
+                } catch (NumberFormatException e) {
+                    // Some other file with the same prefix
+                }
+            }
+        }
+        return last;
+    }
+
+    private static void compress(File file) throws IOException {
+        File compressed = new File(file.getPath() + ".gz");
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), 64 * 1024)) {
+            in.transferTo(out);
+        }
+        Files.delete(file.toPath());
+    }
+}
+
+// How the consumer waits for messages, and how blocked producers wait for space
+enum WaitStrategy {
+    // Lowest latency, burns a core
+    SPIN {
+        void idle() {
+            Thread.onSpinWait();
+        }
+    },
+    // Gives the core to other threads between checks
+    YIELD {
+        void idle() {
+            Thread.yield();
+        }
+    },
+    // Sleeps briefly between checks; cheapest on CPU
+    PARK {
+        void idle() {
+            LockSupport.parkNanos(50_000);
+        }
+    };
+
+    abstract void idle();
+}
+
+// What log() does when the ring buffer is full
+enum OverflowPolicy {
+    // Wait for the consumer to free a slot
+    BLOCK,
+    // Discard the message
+    DROP,
+    // Discard the message and write how many were lost once there is room again
+    COUNT_DROPS
+}
+
+// Multi-producer, single-consumer ring buffer in front of an appender.
+// Slots and their builders are allocated up front. A producer claims a
+// sequence number, copies its message into that slot and publishes the
+// sequence; the consumer thread takes published slots in order, formats
+// them into the appender in batches and flushes when it runs out of work.
+// Shutting down closes the sequence first, so every message is either
+// accepted before that and written, or refused.
+class AsyncLogWriter {
+    // Preallocated ring slot
+    private static final class Slot {
+        final StringBuilder text = new StringBuilder(256);
+    }
+
+    private static final int MAX_BATCH = 4096;
+    // nextSequence once the writer is shut down; claims from it stay negative
+    private static final long CLOSED = Long.MIN_VALUE;
+    // Results of claim() other than a sequence number
+    private static final long DROPPED = -1;
+    private static final long REFUSED = -2;
+
+    private final LogAppender appender;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLongArray published;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong(-1);
+    private final AtomicLong dropped = new AtomicLong();
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread consumer;
+    private final Thread shutdownHook;
+    private volatile boolean running = true;
+    // Sequences below this were handed out before the shutdown
+    private volatile long end = Long.MAX_VALUE;
+
+    AsyncLogWriter(LogAppender appender, int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.appender = appender;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        mask = capacity - 1;
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        consumer = new Thread(this::drain, "async-logger");
+        consumer.setDaemon(true);
+        consumer.start();
+        // Flush whatever is queued if the JVM exits without an explicit shutdown
+        shutdownHook = new Thread(this::shutdown, "async-logger-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Copy a message into the next free slot. Returns false, without taking
+    // the message, once the writer is shut down.
+    boolean publish(CharSequence message) {
+        long sequence = claim();
+        if (sequence < 0) {
+            return sequence == DROPPED;
+        }
+        StringBuilder text = slots[(int) sequence & mask].text;
+        text.setLength(0);
+        text.append(message);
+        published.set((int) sequence & mask, sequence);
+        return true;
+    }
+
+    // Format a parameterized message directly into the next free slot
+    boolean publish(String pattern, Object a, Object b, Object c, int count) {
+        long sequence = claim();
+        if (sequence < 0) {
+            return sequence == DROPPED;
+        }
+        StringBuilder text = slots[(int) sequence & mask].text;
+        text.setLength(0);
+        MessageFormatter.format(text, pattern, a, b, c, count);
+        published.set((int) sequence & mask, sequence);
+        return true;
+    }
+
+    boolean publish(String pattern, long a) {
+        long sequence = claim();
+        if (sequence < 0) {
+            return sequence == DROPPED;
+        }
+        StringBuilder text = slots[(int) sequence & mask].text;
+        text.setLength(0);
+        MessageFormatter.format(text, pattern, a);
+        published.set((int) sequence & mask, sequence);
+        return true;
+    }
+
+    boolean publish(String pattern, Object[] args) {
+        long sequence = claim();
+        if (sequence < 0) {
+            return sequence == DROPPED;
+        }
+        StringBuilder text = slots[(int) sequence & mask].text;
+        text.setLength(0);
+        MessageFormatter.format(text, pattern, args);
+        published.set((int) sequence & mask, sequence);
+        return true;
+    }
+
+    // Reserve a sequence number, or return DROPPED when the buffer is full
+    // and REFUSED once the writer is shut down
+    private long claim() {
+        int capacity = slots.length;
+        if (overflowPolicy == OverflowPolicy.BLOCK) {
+            long sequence = nextSequence.getAndIncrement();
+            if (sequence < 0) {
+                return REFUSED;
+            }
+            while (sequence - capacity > consumed.get()) {
+                waitStrategy.idle();
+            }
+            return sequence;
+        }
+        while (true) {
+            long sequence = nextSequence.get();
+            if (sequence < 0) {
+                return REFUSED;
+            }
+            if (sequence - capacity > consumed.get()) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            if (nextSequence.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    // Consumer loop: take published slots in order, flush when idle
+    private void drain() {
+        long next = 0;
+        long reportedDrops = 0;
+        boolean dirty = false;
+        while (running || next < end) {
+            int batch = 0;
+            while (batch < MAX_BATCH && published.get((int) next & mask) == next) {
+                write(slots[(int) next & mask].text);
+                next++;
+                batch++;
+            }
+            if (batch > 0) {
+                consumed.set(next - 1);
+                dirty = true;
+                if (overflowPolicy == OverflowPolicy.COUNT_DROPS) {
+                    long drops = dropped.get();
+                    if (drops != reportedDrops) {
+                        line.setLength(0);
+                        write(line.append(drops - reportedDrops).append(" messages dropped"));
+                        reportedDrops = drops;
+                    }
+                }
+                continue;
+            }
+            if (dirty) {
+                try {
+                    appender.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                dirty = false;
+            }
+            waitStrategy.idle();
+        }
+        try {
+            appender.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write(CharSequence message) {
+        line.setLength(0);
+        line.append("Log: ").append(message);
+        try {
+            appender.append(line);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Stop accepting work, wait until the queue is written out and close the appender
+    void shutdown() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            // Claims after this fail, so the consumer knows the last sequence
+            end = nextSequence.getAndSet(CLOSED);
+            running = false;
+        }
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            appender.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down and the hook will find nothing to do
+            }
+        }
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+}
+
+// Binary log file. Layout (all numbers big-endian):
+//   header:   int MAGIC, byte VERSION, long start time (epoch millis)
+//   records:  varint tag, then
+//     tag 0 (template):  varint id, varint length, UTF-8 pattern
+//     tag id (message):  byte level, zigzag varint millis since the previous
+//                        message, byte argument count, arguments
+//   argument: byte type, then nothing (NULL, TRUE, FALSE), a zigzag varint
+//             (LONG), an 8-byte double (DOUBLE), a varint (CHAR) or a varint
+//             length and UTF-8 bytes (STRING)
+// A pattern is written once, the first time it is logged, and every later
+// message only refers to its id. Writes go through one lock into a 64 KB
+// buffer that is flushed when full and once a second.
+class BinaryLogWriter {
+    static final int MAGIC = 0x464c4f47;
+    static final int VERSION = 1;
+    static final int TEMPLATE = 0;
+    static final int NULL = 0;
+    static final int LONG = 1;
+    static final int DOUBLE = 2;
+    static final int TRUE = 3;
+    static final int FALSE = 4;
+    static final int STRING = 5;
+    static final int CHAR = 6;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final Map<String, Integer> templates = new HashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final Thread shutdownHook;
+    private long lastTimestamp;
+    private boolean closed;
+
+    BinaryLogWriter(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        lastTimestamp = System.currentTimeMillis();
+        buffer.putInt(MAGIC).put((byte) VERSION).putLong(lastTimestamp);
+        flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "binary-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+        shutdownHook = new Thread(this::close, "binary-log-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    synchronized void write(Level level, String pattern, Object a, Object b, Object c, int count) {
+        if (closed) {
+            return;
+        }
+        try {
+            beginMessage(level, pattern, count);
+            if (count > 0) {
+                putArgument(a);
+            }
+            if (count > 1) {
+                putArgument(b);
+            }
+            if (count > 2) {
+                putArgument(c);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void write(Level level, String pattern, long a) {
+        if (closed) {
+            return;
+        }
+        try {
+            beginMessage(level, pattern, 1);
+            ensure(11);
+            buffer.put((byte) LONG);
+            putVarint(zigzag(a));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void write(Level level, String pattern, Object[] args) {
+        if (closed) {
+            return;
+        }
+        try {
+            beginMessage(level, pattern, Math.min(args.length, 255));
+            for (int i = 0; i < args.length && i < 255; i++) {
+                putArgument(args[i]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void beginMessage(Level level, String pattern, int count) throws IOException {
+        Integer id = templates.get(pattern);
+        if (id == null) {
+            id = templates.size() + 1;
+            templates.put(pattern, id);
+            ensure(10);
+            putVarint(TEMPLATE);
+            putVarint(id);
+            putString(pattern);
+        }
+        long now = System.currentTimeMillis();
+        ensure(22);
+        putVarint(id);
+        buffer.put((byte) level.ordinal());
+        putVarint(zigzag(now - lastTimestamp));
+        buffer.put((byte) count);
+        lastTimestamp = now;
+    }
+
+    private void putArgument(Object arg) throws IOException {
+        ensure(11);
+        if (arg == null) {
+            buffer.put((byte) NULL);
+        } else if (arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte) {
+            buffer.put((byte) LONG);
+            putVarint(zigzag(((Number) arg).longValue()));
+        } else if (arg instanceof Double || arg instanceof Float) {
+            buffer.put((byte) DOUBLE);
+            buffer.putDouble(((Number) arg).doubleValue());
+        } else if (arg instanceof Boolean) {
+            buffer.put((byte) ((Boolean) arg ? TRUE : FALSE));
+        } else if (arg instanceof Character) {
+            buffer.put((byte) CHAR);
+            putVarint((Character) arg);
+        } else {
+            buffer.put((byte) STRING);
+            putString(arg instanceof CharSequence ? (CharSequence) arg : String.valueOf(arg));
+        }
+    }
+
+    // Varint length and UTF-8 bytes; long strings are split across buffer flushes
+    private void putString(CharSequence text) throws IOException {
+        ensure(5);
+        putVarint(Utf8.length(text));
+        int next = 0;
+        while ((next = Utf8.encode(text, next, buffer)) < text.length()) {
+            flushBuffer();
+        }
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    static long unzigzag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void close() {
+        flusher.shutdownNow();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                flushBuffer();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            closed = true;
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down and the hook will find nothing to do
+            }
+        }
+    }
+}
+
+// Turns a binary log back into text, one line per message:
+//   2026-01-01T10:00:00.123Z INFO Log: <formatted message>
+// Usage: java BinaryLogDecoder <file> [--from <time>] [--to <time>] [--template <id or text>]... [--templates]
+// Times are epoch milliseconds or ISO-8601 instants, --to is exclusive.
+// --template keeps messages whose template has that id or contains that
+// text and may be repeated; --templates lists the templates instead.
+class BinaryLogDecoder {
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java BinaryLogDecoder <file> [--from <time>] [--to <time>]"
+                    + " [--template <id or text>]... [--templates]");
+            System.exit(2);
+        }
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        Set<String> filters = new HashSet<>();
+        boolean listTemplates = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--from":
+                    from = parseTime(args[++i]);
+                    break;
+                case "--to":
+                    to = parseTime(args[++i]);
+                    break;
+                case "--template":
+                    filters.add(args[++i]);
+                    break;
+                case "--templates":
+                    listTemplates = true;
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024));
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 64 * 1024))) {
+            decode(in, from, to, filters, listTemplates, out);
+        }
+        out.flush();
+    }
+
+    static void decode(DataInputStream in, long from, long to, Set<String> filters, boolean listTemplates,
+                       PrintWriter out) throws IOException {
+        if (in.readInt() != BinaryLogWriter.MAGIC) {
+            throw new IOException("Not a binary log file");
+        }
+        int version = in.readUnsignedByte();
+        if (version != BinaryLogWriter.VERSION) {
+            throw new IOException("Unsupported binary log version " + version);
+        }
+        long timestamp = in.readLong();
+        Level[] levels = Level.values();
+        Map<Integer, String> templates = new HashMap<>();
+        Set<Integer> selected = new HashSet<>();
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int tag;
+            try {
+                tag = (int) readVarint(in);
+            } catch (EOFException e) {
+                break;
+            }
+            try {
+                if (tag == BinaryLogWriter.TEMPLATE) {
+                    int id = (int) readVarint(in);
+                    String pattern = readString(in);
+                    templates.put(id, pattern);
+                    if (matches(id, pattern, filters)) {
+                        selected.add(id);
+                        if (listTemplates) {
+                            out.println(id + "\t" + pattern);
+                        }
+                    }
+                    continue;
+                }
+                Level level = levels[in.readUnsignedByte()];
+                timestamp += BinaryLogWriter.unzigzag(readVarint(in));
+                Object[] arguments = new Object[in.readUnsignedByte()];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = readArgument(in);
+                }
+                String pattern = templates.get(tag);
+                if (pattern == null) {
+                    throw new IOException("Message refers to unknown template " + tag);
+                }
+                if (listTemplates || timestamp < from || timestamp >= to || !selected.contains(tag)) {
+                    continue;
+                }
+                line.setLength(0);
+                line.append(Instant.ofEpochMilli(timestamp)).append(' ').append(level).append(" Log: ");
+                out.println(MessageFormatter.format(line, pattern, arguments));
+            } catch (EOFException e) {
+                // The writer stopped in the middle of a record
+                System.err.println("Binary log ends with a truncated record");
+                break;
+            }
+        }
+    }
+
+    private static boolean matches(int id, String pattern, Set<String> filters) {
+        if (filters.isEmpty() || filters.contains(Integer.toString(id))) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (pattern.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object readArgument(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case BinaryLogWriter.NULL:
+                return null;
+            case BinaryLogWriter.LONG:
+                return BinaryLogWriter.unzigzag(readVarint(in));
+            case BinaryLogWriter.DOUBLE:
+                return in.readDouble();
+            case BinaryLogWriter.TRUE:
+                return Boolean.TRUE;
+            case BinaryLogWriter.FALSE:
+                return Boolean.FALSE;
+            case BinaryLogWriter.CHAR:
+                return (char) readVarint(in);
+            case BinaryLogWriter.STRING:
+                return readString(in);
+            default:
+                throw new IOException("Unknown argument type " + type);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long parseTime(String time) {
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            return Instant.parse(time).toEpochMilli();
+        }
+    }
+}
+
+// Measures what a steady-state log call allocates on the calling thread,
+// using the same per-thread allocation counter as JMH's GC profiler. The
+// ring blocks when full, so every enabled call is formatted and written,
+// and the check fails if any message was dropped.
+// Run with: java LoggerAllocationCheck
+class LoggerAllocationCheck {
+    private static final int WARMUP = 500_000;
+    private static final int CALLS = 2_000_000;
+
+    public static void main(String[] args) throws IOException {
+        Logger logger = Logger.getInstance();
+        File file = File.createTempFile("allocation-check", ".log");
+        file.deleteOnExit();
+        logger.startAsync(new FileAppender(file), 64 * 1024, WaitStrategy.YIELD, OverflowPolicy.BLOCK);
+        try {
+            String user = "Manikiran";
+            double disabled = measure(() -> logger.log(Level.DEBUG, "User {} logged in from {}", user, "10.0.0.1"));
+            double enabled = measure(() -> logger.log(Level.INFO, "User {} logged in from {}", user, "10.0.0.1"));
+            double primitive = measure(() -> logger.log(Level.INFO, "Processed {} requests", 123_456_789L));
+            double supplier = measure(() -> logger.log(Level.DEBUG, () -> "Expensive " + System.nanoTime()));
+            System.out.printf("Disabled level:     %.3f B/op%n", disabled);
+            System.out.printf("Enabled, 2 args:    %.3f B/op%n", enabled);
+            System.out.printf("Enabled, long arg:  %.3f B/op%n", primitive);
+            System.out.printf("Disabled supplier:  %.3f B/op%n", supplier);
+            if (Math.max(Math.max(disabled, enabled), Math.max(primitive, supplier)) >= 1) {
+                System.out.println("FAILED: log calls allocate");
+                System.exit(1);
+            }
+            if (logger.getDroppedCount() != 0) {
+                System.out.println("FAILED: " + logger.getDroppedCount() + " messages dropped");
+                System.exit(1);
+            }
+        } finally {
+            logger.shutdown();
+        }
+    }
+
+    private static double measure(Runnable call) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++) {
+            call.run();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < CALLS; i++) {
+            call.run();
+        }
+        return (double) (threads.getThreadAllocatedBytes(thread) - before) / CALLS;
+    }
 }
 
 // Example usage of Logger in an application
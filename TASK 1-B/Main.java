@@ -1,14 +1,1160 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+// Why a session ended
+enum SessionEnd {
+    // Explicit logout
+    LOGOUT,
+    // TTL or idle timeout
+    EXPIRED
+}
+
+// One logged-in session. It ends at its hard deadline (login time plus TTL)
+// or after idleTimeout without access, whichever comes first.
+final class Session implements TimingWheel.Expirable {
+    private final String token;
+    private final String username;
+    private final long createdAt;
+    private final long hardDeadline;
+    private final long idleTimeout;
+    private final SessionRegistry registry;
+    private volatile long lastAccess;
+    volatile TimingWheel.Timeout timeout;
+
+    Session(String token, String username, long createdAt, long ttl, long idleTimeout, SessionRegistry registry) {
+        this.token = token;
+        this.username = username;
+        this.createdAt = createdAt;
+        this.hardDeadline = ttl > 0 ? createdAt + ttl : Long.MAX_VALUE;
+        this.idleTimeout = idleTimeout;
+        this.registry = registry;
+        this.lastAccess = createdAt;
+    }
+
+    // Record an access at time now; false if the session has already expired
+    boolean touch(long now) {
+        if (expiresAt() <= now) {
+            return false;
+        }
+        // Skip the write when nothing changed, so readers don't bounce the cache line
+        if (lastAccess != now) {
+            lastAccess = now;
+        }
+        return true;
+    }
+
+    @Override
+    public long expiresAt() {
+        return idleTimeout > 0 ? Math.min(hardDeadline, lastAccess + idleTimeout) : hardDeadline;
+    }
+
+    @Override
+    public void expire() {
+        registry.expire(this);
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+}
+
+// Concurrent registry of logged-in sessions, keyed by session token. Backed
+// by a ConcurrentHashMap, so lookups take no lock and login/logout only lock
+// one bin; every operation is O(1). Tokens are 128 random bits from a
+// per-thread DRBG, so generating them doesn't serialize threads either.
+//
+// With a TTL or idle timeout, every session is put on a TimingWheel once at
+// login. An access only stores the wheel's current time in the session, and
+// the wheel checks the deadline again when the timeout comes round; an
+// expired session is treated as logged out right away even if the wheel has
+// not removed it yet.
+class SessionRegistry implements AutoCloseable {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SessionRegistry::newRandom);
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>(1024);
+    private final long ttl;
+    private final long idleTimeout;
+    // Null when sessions never expire
+    private final TimingWheel wheel;
+    private final List<BiConsumer<Session, SessionEnd>> endListeners = new CopyOnWriteArrayList<>();
+
+    // Sessions that never expire
+    public SessionRegistry() {
+        this(0, 0);
+    }
+
+    // Sessions end ttl millis after login or idleTimeout millis after their
+    // last access, whichever is first; 0 turns either off
+    public SessionRegistry(long ttl, long idleTimeout) {
+        this.ttl = ttl;
+        this.idleTimeout = idleTimeout;
+        if (ttl > 0 || idleTimeout > 0) {
+            long shortest = ttl > 0 && idleTimeout > 0 ? Math.min(ttl, idleTimeout) : Math.max(ttl, idleTimeout);
+            // Around 1% precision, at most 100 ms
+            wheel = new TimingWheel(Math.max(1, Math.min(100, shortest / 100)), "session-expiry");
+        } else {
+            wheel = null;
+        }
+    }
+
+    // Start a session and return its token
+    public String login(String username) {
+        while (true) {
+            String token = newToken();
+            Session session = new Session(token, username, System.currentTimeMillis(), ttl, idleTimeout, this);
+            if (sessions.putIfAbsent(token, session) == null) {
+                if (wheel != null) {
+                    session.timeout = wheel.schedule(session);
+                }
+                return token;
+            }
+        }
+    }
+
+    // End a session; false if the token was not logged in
+    public boolean logout(String token) {
+        Session session = token == null ? null : sessions.remove(token);
+        if (session == null) {
+            return false;
+        }
+        TimingWheel.Timeout timeout = session.timeout;
+        if (timeout != null) {
+            wheel.cancel(timeout);
+        }
+        ended(session, SessionEnd.LOGOUT);
+        return true;
+    }
+
+    // Also counts as an access to the session
+    public boolean isLoggedIn(String token) {
+        return getSession(token) != null;
+    }
+
+    // Session for the token, or null; also counts as an access
+    public Session getSession(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null || wheel == null) {
+            return session;
+        }
+        return session.touch(wheel.currentTimeMillis()) ? session : null;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    // Called once for each session that ends: on the logging-out thread for
+    // a logout, on the expiry thread for a timeout
+    public void addEndListener(BiConsumer<Session, SessionEnd> listener) {
+        endListeners.add(listener);
+    }
+
+    public void removeEndListener(BiConsumer<Session, SessionEnd> listener) {
+        endListeners.remove(listener);
+    }
+
+    void expire(Session session) {
+        if (sessions.remove(session.getToken(), session)) {
+            ended(session, SessionEnd.EXPIRED);
+        }
+    }
+
+    private void ended(Session session, SessionEnd reason) {
+        for (BiConsumer<Session, SessionEnd> listener : endListeners) {
+            try {
+                listener.accept(session, reason);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Stop the expiry thread
+    @Override
+    public void close() {
+        if (wheel != null) {
+            wheel.close();
+        }
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.get().nextBytes(bytes);
+        char[] token = new char[32];
+        for (int i = 0; i < bytes.length; i++) {
+            token[2 * i] = HEX[bytes[i] >> 4 & 0xf];
+            token[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(token);
+    }
+
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+}
+
+// Hierarchical timing wheel: 4 levels of 64 slots, where a slot of each
+// level spans one full turn of the level below, so with 100 ms ticks it
+// covers about 19 days; later deadlines are parked in the top level and
+// placed again when they come round. A single daemon ticker thread owns the
+// wheel. schedule() and cancel() only queue a request for it, and every tick
+// it cascades the higher-level slots that came round and fires the current
+// slot, so each timeout costs O(1) no matter how many are pending.
+// A firing timeout asks its target for its deadline again and is placed
+// again if the deadline moved, so extending a deadline never touches the
+// wheel: targets just remember their last access.
+class TimingWheel implements AutoCloseable {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 4;
+
+    // Something the wheel can expire
+    interface Expirable {
+        // Current deadline in epoch millis; Long.MAX_VALUE for none
+        long expiresAt();
+
+        // Called on the ticker thread once the deadline has passed
+        void expire();
+    }
+
+    // A scheduled target, linked into one slot's list
+    static final class Timeout {
+        final Expirable target;
+        long deadline;
+        Timeout prev;
+        Timeout next;
+        volatile boolean cancelled;
+
+        Timeout(Expirable target) {
+            this.target = target;
+        }
+    }
+
+    private final long tickMillis;
+    private final long origin;
+    // Sentinel of each slot's circular list
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread ticker;
+    // Ticker thread only: last tick fired, and the first tick still open for new timeouts
+    private long tick;
+    private long firstOpen = 1;
+    private volatile long now;
+    private volatile boolean running = true;
+
+    TimingWheel(long tickMillis, String name) {
+        this.tickMillis = tickMillis;
+        for (Timeout[] level : slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                Timeout sentinel = new Timeout(null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+        }
+        origin = System.currentTimeMillis();
+        now = origin;
+        ticker = new Thread(this::run, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // Clock updated every tick; cheaper than System.currentTimeMillis()
+    long currentTimeMillis() {
+        return now;
+    }
+
+    Timeout schedule(Expirable target) {
+        Timeout timeout = new Timeout(target);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    void cancel(Timeout timeout) {
+        timeout.cancelled = true;
+        cancelled.add(timeout);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long wait = origin + (tick + 1) * tickMillis - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            now = System.currentTimeMillis();
+            drainRequests();
+            // Catch up if the thread was held up for several ticks
+            while (origin + (tick + 1) * tickMillis <= now) {
+                advance();
+            }
+        }
+    }
+
+    private void drainRequests() {
+        for (Timeout timeout; (timeout = scheduled.poll()) != null; ) {
+            if (!timeout.cancelled) {
+                timeout.deadline = timeout.target.expiresAt();
+                if (timeout.deadline != Long.MAX_VALUE) {
+                    place(timeout);
+                }
+            }
+        }
+        for (Timeout timeout; (timeout = cancelled.poll()) != null; ) {
+            if (timeout.next != null) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    private void advance() {
+        tick++;
+        firstOpen = tick;
+        // Cascade from the highest level that came round, so timeouts moving
+        // down several levels still land in a slot that is yet to come
+        int top = 0;
+        while (top < LEVELS - 1 && (tick & ((1L << (BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+        for (int level = top; level > 0; level--) {
+            for (Timeout timeout = detach(slots[level][(int) (tick >>> (BITS * level)) & (SLOTS - 1)]); timeout != null; ) {
+                Timeout next = timeout.next;
+                timeout.prev = null;
+                timeout.next = null;
+                place(timeout);
+                timeout = next;
+            }
+        }
+        firstOpen = tick + 1;
+        for (Timeout timeout = detach(slots[0][(int) tick & (SLOTS - 1)]); timeout != null; ) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            fire(timeout);
+            timeout = next;
+        }
+    }
+
+    private void fire(Timeout timeout) {
+        if (timeout.cancelled) {
+            return;
+        }
+        long deadline = timeout.target.expiresAt();
+        if (deadline > now) {
+            if (deadline != Long.MAX_VALUE) {
+                timeout.deadline = deadline;
+                place(timeout);
+            }
+            return;
+        }
+        try {
+            timeout.target.expire();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Link a timeout into the slot for its deadline, relative to the current tick
+    private void place(Timeout timeout) {
+        long offset = timeout.deadline - origin;
+        long due = Math.max(offset <= 0 ? 0 : (offset - 1) / tickMillis + 1, firstOpen);
+        long delta = due - tick;
+        if (delta >= 1L << (BITS * LEVELS)) {
+            due = tick + (1L << (BITS * LEVELS)) - 1;
+            delta = due - tick;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        Timeout sentinel = slots[level][(int) (due >>> (BITS * level)) & (SLOTS - 1)];
+        timeout.prev = sentinel.prev;
+        timeout.next = sentinel;
+        sentinel.prev.next = timeout;
+        sentinel.prev = timeout;
+    }
+
+    private static void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    // Empty a slot and return its first timeout; the list ends in null
+    private static Timeout detach(Timeout sentinel) {
+        if (sentinel.next == sentinel) {
+            return null;
+        }
+        Timeout first = sentinel.next;
+        sentinel.prev.next = null;
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+        return first;
+    }
+}
+
+// In-memory account ledger. Balances are fixed-point longs in minor units
+// (cents) and live in an open-addressing table keyed by account number: one
+// AtomicLongArray holds [account, balance] pairs with linear probing, so a
+// lookup touches one cache line and nothing is boxed. Accounts are opened by
+// CASing their number into an empty slot and are never removed, so probing
+// needs no tombstones and nothing in the ledger takes a lock.
+//
+// Every balance change is a CAS on that account's single long; withdrawals
+// check for overdraft inside the CAS loop, so a balance never goes negative
+// and a read always returns a value some completed operation left behind.
+class Ledger {
+    private static final long EMPTY = 0;
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    // capacity is the most accounts the ledger will hold; the table keeps
+    // at least twice as many slots so probe sequences stay short
+    Ledger(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 29) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        table = new AtomicLongArray(slots * 2);
+        mask = slots - 1;
+    }
+
+    // Open an account with a zero balance; false if it was already open
+    boolean open(long account) {
+        checkAccount(account);
+        for (int slot = hash(account), probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            long key = table.get(slot * 2);
+            if (key == EMPTY) {
+                if (table.compareAndSet(slot * 2, EMPTY, account)) {
+                    size.incrementAndGet();
+                    return true;
+                }
+                key = table.get(slot * 2);
+            }
+            if (key == account) {
+                return false;
+            }
+        }
+        throw new IllegalStateException("Ledger is full");
+    }
+
+    boolean isOpen(long account) {
+        return slotOf(account) >= 0;
+    }
+
+    long balance(long account) {
+        return table.get(balanceIndex(account));
+    }
+
+    // Add amount minor units; returns the new balance
+    long deposit(long account, long amount) {
+        checkAmount(amount);
+        int index = balanceIndex(account);
+        while (true) {
+            long balance = table.get(index);
+            long updated = Math.addExact(balance, amount);
+            if (table.compareAndSet(index, balance, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    // Take amount minor units; returns the new balance, or -1 if the account
+    // holds less than amount and nothing was taken
+    long withdraw(long account, long amount) {
+        checkAmount(amount);
+        int index = balanceIndex(account);
+        while (true) {
+            long balance = table.get(index);
+            if (balance < amount) {
+                return -1;
+            }
+            if (table.compareAndSet(index, balance, balance - amount)) {
+                return balance - amount;
+            }
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    // Sum of all balances; only exact while nothing is changing them
+    long total() {
+        long total = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            if (table.get(slot * 2) != EMPTY) {
+                total += table.get(slot * 2 + 1);
+            }
+        }
+        return total;
+    }
+
+    static long toMinorUnits(double amount) {
+        if (!(amount >= 0) || amount > Long.MAX_VALUE / 100.0) {
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        }
+        return Math.round(amount * 100);
+    }
+
+    static String format(long minorUnits) {
+        return (minorUnits < 0 ? "-" : "") + Math.abs(minorUnits / 100) + "." + (char) ('0' + Math.abs(minorUnits % 100) / 10) + (char) ('0' + Math.abs(minorUnits % 10));
+    }
+
+    private int balanceIndex(long account) {
+        int slot = slotOf(account);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No such account: " + account);
+        }
+        return slot * 2 + 1;
+    }
+
+    private int slotOf(long account) {
+        checkAccount(account);
+        for (int slot = hash(account), probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            long key = table.get(slot * 2);
+            if (key == account) {
+                return slot;
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private int hash(long account) {
+        long h = account * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static void checkAccount(long account) {
+        if (account == EMPTY) {
+            throw new IllegalArgumentException("Account number 0 is reserved");
+        }
+    }
+
+    private static void checkAmount(long amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Amount must be positive: " + amount);
+        }
+    }
+}
+
+// Write-ahead journal for a Ledger. Every deposit, withdrawal and account
+// opening is appended as a CRC-protected binary record, and the call only
+// returns once its record is on disk. One writer thread gathers the records
+// of concurrent callers into groups of up to maxBatch, waiting at most
+// maxDelayMicros after the first one for more to arrive, and makes each
+// group durable with a single FileChannel.force.
+//
+// A ledger update and the queueing of its record happen under one of 64
+// stripe locks chosen by account, so each account's records reach the file
+// in the order its balance changed; a replay can never apply a withdrawal
+// before the deposit that paid for it. Different accounts still proceed in
+// parallel.
+//
+// checkpoint() briefly takes every stripe, copies all balances and starts a
+// new journal segment, then writes the copy to checkpoint.bin and deletes
+// the older segments. Recovery loads the checkpoint and replays only the
+// segments after it. A torn record at the end of the last segment (a crash
+// mid-write) is cut off; damage anywhere else is reported as an IOException.
+//
+// Record: int payload length, int CRC32 of the payload, payload of
+// byte type, long account, long amount, and for OPEN a short name length
+// and the UTF-8 name.
+class Journal implements AutoCloseable {
+    private static final byte OPEN = 1;
+    private static final byte DEPOSIT = 2;
+    private static final byte WITHDRAW = 3;
+    // Markers for the writer thread, never written
+    private static final byte ROTATE = 10;
+    private static final byte STOP = 11;
+
+    private static final int CHECKPOINT_MAGIC = 0x424b4350;
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final int STRIPES = 64;
+    private static final int MAX_NAME_BYTES = 1024;
+    private static final int MAX_RECORD = 4 + 4 + 1 + 8 + 8 + 2 + MAX_NAME_BYTES;
+
+    // One queued record and the caller waiting for it to be durable
+    private static final class Entry {
+        final byte type;
+        final long account;
+        final long amount;
+        final byte[] name;
+        final Thread waiter = Thread.currentThread();
+        // For ROTATE: the segment the writer moved to, set before done
+        long rotatedTo;
+        volatile boolean done;
+        volatile IOException failure;
+
+        Entry(byte type, long account, long amount, byte[] name) {
+            this.type = type;
+            this.account = account;
+            this.amount = amount;
+            this.name = name;
+        }
+    }
+
+    private final Path directory;
+    private final Ledger ledger;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentHashMap<String, Long> accounts = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    // Writer thread only
+    private FileChannel channel;
+    private long generation;
+    // Set by the writer when a write fails; the journal refuses every change after that
+    private volatile IOException failure;
+    // Guarded by all stripes
+    private boolean closed;
+
+    private Journal(Path directory, Ledger ledger, int maxBatch, long maxDelayMicros) {
+        if (maxBatch <= 0 || maxDelayMicros < 0) {
+            throw new IllegalArgumentException("Invalid group commit settings: " + maxBatch + ", " + maxDelayMicros);
+        }
+        this.directory = directory;
+        this.ledger = ledger;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = maxDelayMicros * 1000;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        writer = new Thread(this::run, "journal-writer");
+        writer.setDaemon(true);
+    }
+
+    // Rebuild ledger, which must be empty, from the journal in directory and
+    // open the journal for appending
+    static Journal open(Path directory, Ledger ledger, int maxBatch, long maxDelayMicros) throws IOException {
+        Journal journal = new Journal(directory, ledger, maxBatch, maxDelayMicros);
+        Files.createDirectories(directory);
+        journal.recover();
+        journal.writer.start();
+        return journal;
+    }
+
+    Ledger getLedger() {
+        return ledger;
+    }
+
+    // Accounts by user name, as opened through this journal
+    Map<String, Long> getAccounts() {
+        return Collections.unmodifiableMap(accounts);
+    }
+
+    // Open account under name; returns the account the name ends up with,
+    // which is an earlier one if the name already has an account
+    long openAccount(long account, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Account name too long: " + name);
+        }
+        Entry entry = new Entry(OPEN, account, 0, bytes);
+        ReentrantLock lock = stripe(account);
+        lock.lock();
+        try {
+            checkOpen();
+            // The owner of an earlier account queued its OPEN under that
+            // account's stripe, so it is journaled before anything done to it
+            Long existing = accounts.putIfAbsent(name, account);
+            if (existing != null) {
+                return existing;
+            }
+            if (!ledger.open(account)) {
+                accounts.remove(name, account);
+                throw new IllegalArgumentException("Account already open: " + account);
+            }
+            queue.add(entry);
+        } finally {
+            lock.unlock();
+        }
+        await(entry);
+        return account;
+    }
+
+    // Same as Ledger.deposit, returning once the deposit is durable
+    long deposit(long account, long amount) {
+        Entry entry = new Entry(DEPOSIT, account, amount, null);
+        long balance;
+        ReentrantLock lock = stripe(account);
+        lock.lock();
+        try {
+            checkOpen();
+            balance = ledger.deposit(account, amount);
+            queue.add(entry);
+        } finally {
+            lock.unlock();
+        }
+        await(entry);
+        return balance;
+    }
+
+    // Same as Ledger.withdraw, returning once the withdrawal is durable; a
+    // refused withdrawal is not journaled
+    long withdraw(long account, long amount) {
+        Entry entry = new Entry(WITHDRAW, account, amount, null);
+        long balance;
+        ReentrantLock lock = stripe(account);
+        lock.lock();
+        try {
+            checkOpen();
+            balance = ledger.withdraw(account, amount);
+            if (balance < 0) {
+                return balance;
+            }
+            queue.add(entry);
+        } finally {
+            lock.unlock();
+        }
+        await(entry);
+        return balance;
+    }
+
+    // Snapshot all balances so that recovery only has to replay what follows.
+    // Checkpoints run one at a time, since they share checkpoint.tmp and
+    // each must only delete the segments its own snapshot covers.
+    synchronized void checkpoint() throws IOException {
+        Entry rotate = new Entry(ROTATE, 0, 0, null);
+        String[] names;
+        long[] numbers;
+        long[] balances;
+        lockAll();
+        try {
+            checkOpen();
+            names = new String[accounts.size()];
+            numbers = new long[names.length];
+            balances = new long[names.length];
+            int i = 0;
+            for (Map.Entry<String, Long> account : accounts.entrySet()) {
+                names[i] = account.getKey();
+                numbers[i] = account.getValue();
+                balances[i] = ledger.balance(numbers[i]);
+                i++;
+            }
+            queue.add(rotate);
+        } finally {
+            unlockAll();
+        }
+        // The writer has moved to the next segment once this returns
+        await(rotate);
+        long covered = rotate.rotatedTo;
+        writeCheckpoint(covered, names, numbers, balances);
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path segment : segments) {
+                if (segmentGeneration(segment) < covered) {
+                    Files.delete(segment);
+                }
+            }
+        }
+    }
+
+    // Make everything queued durable and stop the writer
+    @Override
+    public void close() {
+        Entry stop = new Entry(STOP, 0, 0, null);
+        lockAll();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(stop);
+        } finally {
+            unlockAll();
+        }
+        await(stop);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ReentrantLock stripe(long account) {
+        return stripes[(int) (account ^ (account >>> 32)) & (STRIPES - 1)];
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (ReentrantLock lock : stripes) {
+            lock.unlock();
+        }
+    }
+
+    // Call with a stripe held, before touching the ledger, so that nothing
+    // changes in memory once records can no longer be written
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        IOException failed = failure;
+        if (failed != null) {
+            throw new UncheckedIOException("Journal write failed", failed);
+        }
+    }
+
+    private static void await(Entry entry) {
+        boolean interrupted = false;
+        while (!entry.done) {
+            LockSupport.park(entry);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (entry.failure != null) {
+            throw new UncheckedIOException("Journal write failed", entry.failure);
+        }
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(maxBatch);
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - batch.size());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    Entry next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+            } catch (InterruptedException e) {
+                // Nothing interrupts the writer; carry on with what we have
+            }
+            running = commit(batch);
+            batch.clear();
+        }
+    }
+
+    // Write and force a group, then release its callers; false after STOP
+    private boolean commit(List<Entry> batch) {
+        boolean running = true;
+        if (failure == null) {
+            try {
+                for (Entry entry : batch) {
+                    if (entry.type == ROTATE || entry.type == STOP) {
+                        flush();
+                        channel.force(false);
+                        channel.close();
+                        if (entry.type == ROTATE) {
+                            generation++;
+                            channel = FileChannel.open(segment(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                            entry.rotatedTo = generation;
+                        } else {
+                            running = false;
+                        }
+                    } else {
+                        encode(entry);
+                    }
+                }
+                if (running) {
+                    flush();
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                // The file is in an unknown state: fail this group and every later one
+                failure = e;
+            }
+        }
+        for (Entry entry : batch) {
+            entry.failure = failure;
+            entry.done = true;
+            LockSupport.unpark(entry.waiter);
+            running &= entry.type != STOP;
+        }
+        return running;
+    }
+
+    private void encode(Entry entry) throws IOException {
+        if (buffer.remaining() < MAX_RECORD) {
+            flush();
+        }
+        int start = buffer.position();
+        buffer.position(start + 8);
+        buffer.put(entry.type).putLong(entry.account).putLong(entry.amount);
+        if (entry.name != null) {
+            buffer.putShort((short) entry.name.length).put(entry.name);
+        }
+        int end = buffer.position();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(start + 8).limit(end);
+        crc.reset();
+        crc.update(payload);
+        buffer.putInt(start, end - start - 8).putInt(start + 4, (int) crc.getValue());
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private Path segment(long generation) {
+        return directory.resolve(String.format("journal-%06d.log", generation));
+    }
+
+    private static long segmentGeneration(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private void recover() throws IOException {
+        generation = readCheckpoint();
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path segment : segments) {
+                long number = segmentGeneration(segment);
+                if (number >= generation && number != Long.MAX_VALUE) {
+                    generations.add(number);
+                }
+            }
+        }
+        Collections.sort(generations);
+        for (int i = 0; i < generations.size(); i++) {
+            boolean last = i == generations.size() - 1;
+            if (generations.get(i) != generation + i) {
+                throw new IOException("Journal segment " + (generation + i) + " is missing");
+            }
+            replay(segment(generations.get(i)), last);
+        }
+        generation += Math.max(0, generations.size() - 1);
+        channel = FileChannel.open(segment(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    // Apply one segment; the last one is cut back to its last whole record
+    private void replay(Path segment, boolean last) throws IOException {
+        long valid = 0;
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            while (data.remaining() >= 8) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length < 17 || length > MAX_RECORD - 8 || length > data.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = data.slice();
+                payload.limit(length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(payload);
+                data.position(data.position() + length);
+                valid = data.position();
+            }
+            if (valid < in.size() && !last) {
+                throw new IOException("Corrupt record at offset " + valid + " of " + segment);
+            }
+        }
+        if (last) {
+            try (FileChannel out = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                if (out.size() > valid) {
+                    out.truncate(valid);
+                    out.force(false);
+                }
+            }
+        }
+    }
+
+    private void apply(ByteBuffer payload) throws IOException {
+        byte type = payload.get();
+        long account = payload.getLong();
+        long amount = payload.getLong();
+        switch (type) {
+            case OPEN:
+                byte[] name = new byte[payload.getShort() & 0xffff];
+                payload.get(name);
+                ledger.open(account);
+                accounts.put(new String(name, StandardCharsets.UTF_8), account);
+                break;
+            case DEPOSIT:
+                ledger.deposit(account, amount);
+                break;
+            case WITHDRAW:
+                if (ledger.withdraw(account, amount) < 0) {
+                    throw new IOException("Journal overdraws account " + account);
+                }
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private void writeCheckpoint(long covered, String[] names, long[] numbers, long[] balances) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + names.length * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeInt(CHECKPOINT_VERSION);
+        out.writeLong(covered);
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            out.writeLong(numbers[i]);
+            out.writeLong(balances[i]);
+            out.writeUTF(names[i]);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        out.writeInt((int) checksum.getValue());
+        Path temporary = directory.resolve("checkpoint.tmp");
+        try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+            while (data.hasRemaining()) {
+                file.write(data);
+            }
+            file.force(true);
+        }
+        Files.move(temporary, directory.resolve("checkpoint.bin"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Load checkpoint.bin, if any, into the ledger; returns the first
+    // journal segment it does not cover
+    private long readCheckpoint() throws IOException {
+        Path file = directory.resolve("checkpoint.bin");
+        if (!Files.exists(file)) {
+            return 1;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 0, Math.max(0, bytes.length - 4));
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        if (bytes.length < 24 || data.getInt() != CHECKPOINT_MAGIC || data.getInt() != CHECKPOINT_VERSION
+                || data.getInt(bytes.length - 4) != (int) checksum.getValue()) {
+            throw new IOException("Corrupt checkpoint " + file);
+        }
+        long covered = data.getLong();
+        int count = data.getInt();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, data.position(), bytes.length - data.position() - 4));
+        for (int i = 0; i < count; i++) {
+            long account = in.readLong();
+            long balance = in.readLong();
+            String name = in.readUTF();
+            ledger.open(account);
+            if (balance > 0) {
+                ledger.deposit(account, balance);
+            }
+            accounts.put(name, account);
+        }
+        return covered;
+    }
+}
+
 // Singleton class to manage user login state
 class UserSession {
     // Private static variable that stores the single instance of UserSession
     private static UserSession instance;
     
-    // Private variable to store the current logged-in user
-    private String loggedInUser;
+    // Sessions end after 8 hours, or after 15 minutes without activity
+    private static final long SESSION_TTL_MILLIS = 8 * 60 * 60 * 1000L;
+    private static final long IDLE_TIMEOUT_MILLIS = 15 * 60 * 1000L;
+
+    // Sessions of all logged-in users
+    private final SessionRegistry registry = new SessionRegistry(SESSION_TTL_MILLIS, IDLE_TIMEOUT_MILLIS);
+
+    private volatile boolean verbose = true;
 
     // Private constructor to prevent instantiation from other classes
     private UserSession() {
-        loggedInUser = null;
     }
 
     // Public static method to provide access to the single instance of UserSession
@@ -23,66 +1169,838 @@ class UserSession {
         return instance;
     }
 
-    // Method to log in the user
-    public void login(String username) {
-        if (loggedInUser == null) {
-            loggedInUser = username;
-            System.out.println(username + " logged in successfully.");
-        } else {
-            System.out.println("Already logged in as " + loggedInUser + ". Please log out first.");
-        }
+    // Method to log in a user; returns the session token for later calls
+    public String login(String username) {
+        String token = registry.login(username);
+        report(username + " logged in successfully.");
+        return token;
     }
 
-    // Method to log out the user
-    public void logout() {
-        if (loggedInUser != null) {
-            System.out.println(loggedInUser + " logged out successfully.");
-            loggedInUser = null;
+    // Method to log out the user of a session
+    public void logout(String token) {
+        Session session = registry.getSession(token);
+        if (session != null && registry.logout(token)) {
+            report(session.getUsername() + " logged out successfully.");
         } else {
-            System.out.println("No user is currently logged in.");
+            report("No user is logged in with this session.");
         }
     }
 
-    // Method to check if a user is logged in
-    public boolean isLoggedIn() {
-        return loggedInUser != null;
+    // Method to check if a session is logged in
+    public boolean isLoggedIn(String token) {
+        return registry.isLoggedIn(token);
     }
 
-    // Method to get the current logged-in user
-    public String getLoggedInUser() {
-        return loggedInUser;
+    // Method to get the user of a session, or null
+    public String getLoggedInUser(String token) {
+        Session session = registry.getSession(token);
+        return session != null ? session.getUsername() : null;
+    }
+
+    // Called once for each session that ends, by logout or timeout
+    public void addEndListener(BiConsumer<Session, SessionEnd> listener) {
+        registry.addEndListener(listener);
+    }
+
+    public void removeEndListener(BiConsumer<Session, SessionEnd> listener) {
+        registry.removeEndListener(listener);
+    }
+
+    public SessionRegistry getRegistry() {
+        return registry;
+    }
+
+    // Turn the console messages off, e.g. under load
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    private void report(String message) {
+        if (verbose) {
+            System.out.println(message);
+        }
     }
 }
 
-// Banking operations class
-class BankingOperations {
+// Banking operations class. Each user gets an account in the ledger the
+// first time they use one of these operations. With a journal, every change
+// is durable before it is reported and the accounts survive a restart.
+// Close an instance that is no longer needed, so the session singleton stops
+// notifying it and it can be collected along with its ledger.
+class BankingOperations implements AutoCloseable {
+    private static final int MAX_ACCOUNTS = 100_000;
+
     private UserSession userSession;
+    private final BiConsumer<Session, SessionEnd> endListener = this::sessionEnded;
+    private final Ledger ledger;
+    private final Journal journal;
+    private final ConcurrentHashMap<String, Long> accountNumbers = new ConcurrentHashMap<>();
+    private final AtomicLong nextAccountNumber = new AtomicLong();
+    private volatile boolean verbose = true;
 
     public BankingOperations() {
+        this(new Ledger(MAX_ACCOUNTS));
+    }
+
+    public BankingOperations(Ledger ledger) {
+        this(ledger, null);
+    }
+
+    public BankingOperations(Journal journal) {
+        this(journal.getLedger(), journal);
+    }
+
+    private BankingOperations(Ledger ledger, Journal journal) {
+        this.ledger = ledger;
+        this.journal = journal;
+        if (journal != null) {
+            accountNumbers.putAll(journal.getAccounts());
+            for (long account : accountNumbers.values()) {
+                nextAccountNumber.accumulateAndGet(account, Math::max);
+            }
+        }
         userSession = UserSession.getInstance();
+        userSession.addEndListener(endListener);
+    }
+
+    @Override
+    public void close() {
+        userSession.removeEndListener(endListener);
     }
 
-    public void viewBalance() {
-        if (userSession.isLoggedIn()) {
-            System.out.println("Displaying balance for " + userSession.getLoggedInUser());
+    // Called on logout and on timeout. Nothing is kept per session yet, so
+    // this only reports timeouts; UserSession already reports logouts.
+    private void sessionEnded(Session session, SessionEnd reason) {
+        if (reason == SessionEnd.EXPIRED) {
+            report("Session of " + session.getUsername() + " expired.");
+        }
+    }
+
+    public void viewBalance(String token) {
+        String user = userSession.getLoggedInUser(token);
+        if (user != null) {
+            report("Balance for " + user + ": " + Ledger.format(ledger.balance(accountOf(user))));
         } else {
-            System.out.println("Please log in to view balance.");
+            report("Please log in to view balance.");
         }
     }
 
-    public void deposit(double amount) {
-        if (userSession.isLoggedIn()) {
-            System.out.println("Depositing " + amount + " for " + userSession.getLoggedInUser());
+    public void deposit(String token, double amount) {
+        String user = userSession.getLoggedInUser(token);
+        long cents = centsOf(amount);
+        if (user == null) {
+            report("Please log in to deposit.");
+        } else if (cents <= 0) {
+            report("Deposit amount must be positive.");
         } else {
-            System.out.println("Please log in to deposit.");
+            long account = accountOf(user);
+            long balance = journal != null ? journal.deposit(account, cents) : ledger.deposit(account, cents);
+            report("Deposited " + Ledger.format(cents) + " for " + user + ", balance " + Ledger.format(balance));
         }
     }
 
-    public void withdraw(double amount) {
-        if (userSession.isLoggedIn()) {
-            System.out.println("Withdrawing " + amount + " for " + userSession.getLoggedInUser());
+    public void withdraw(String token, double amount) {
+        String user = userSession.getLoggedInUser(token);
+        long cents = centsOf(amount);
+        if (user == null) {
+            report("Please log in to withdraw.");
+        } else if (cents <= 0) {
+            report("Withdrawal amount must be positive.");
         } else {
-            System.out.println("Please log in to withdraw.");
+            long account = accountOf(user);
+            long balance = journal != null ? journal.withdraw(account, cents) : ledger.withdraw(account, cents);
+            if (balance >= 0) {
+                report("Withdrew " + Ledger.format(cents) + " for " + user + ", balance " + Ledger.format(balance));
+            } else {
+                report("Insufficient funds for " + user + " to withdraw " + Ledger.format(cents));
+            }
+        }
+    }
+
+    // Amount in cents; 0 for amounts that are not positive or round to
+    // nothing, such as 0.004
+    private static long centsOf(double amount) {
+        return amount > 0 ? Ledger.toMinorUnits(amount) : 0;
+    }
+
+    public Ledger getLedger() {
+        return ledger;
+    }
+
+    // Turn the console messages off, e.g. under load
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    private void report(String message) {
+        if (verbose) {
+            System.out.println(message);
+        }
+    }
+
+    private long accountOf(String user) {
+        if (journal == null) {
+            return accountNumbers.computeIfAbsent(user, u -> {
+                long account = nextAccountNumber.incrementAndGet();
+                ledger.open(account);
+                return account;
+            });
+        }
+        Long known = accountNumbers.get(user);
+        if (known != null) {
+            return known;
+        }
+        // Opening waits for the journal, so it must not hold a map bin; the
+        // journal makes sure concurrent callers all get the same account
+        long account = journal.openAccount(nextAccountNumber.incrementAndGet(), user);
+        accountNumbers.putIfAbsent(user, account);
+        return account;
+    }
+}
+
+// Contention benchmark for SessionRegistry: each thread logs in, checks its
+// session a few times and logs out, in a loop, against a registry that
+// already holds 100k sessions. Prints operations per second for 1, 2, 4, ...
+// threads up to twice the core count, plus a run with 2000 threads.
+// Run with: java SessionBenchmark [seconds per run]
+class SessionBenchmark {
+    private static final int CHECKS_PER_LOGIN = 8;
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = (long) (args.length > 0 ? Double.parseDouble(args[0]) * 1000 : 2000);
+        SessionRegistry registry = new SessionRegistry();
+        for (int i = 0; i < 100_000; i++) {
+            registry.login("resident" + i);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d cores, %d ms per run%n", cores, millis);
+        // Warm-up, not reported
+        run(registry, cores, millis);
+        System.out.printf("%8s %15s %10s%n", "threads", "ops/s", "scaling");
+        double single = 0;
+        for (int threads = 1; threads <= 2 * cores || threads == 1; threads *= 2) {
+            double rate = run(registry, threads, millis);
+            single = threads == 1 ? rate : single;
+            System.out.printf("%8d %15.0f %9.2fx%n", threads, rate, rate / single);
+        }
+        double rate = run(registry, 2000, millis);
+        System.out.printf("%8d %15.0f %9.2fx%n", 2000, rate, rate / single);
+        System.out.println("Sessions left: " + registry.size());
+    }
+
+    private static double run(SessionRegistry registry, int threads, long millis) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        for (int t = 0; t < threads; t++) {
+            String user = "user" + t;
+            workers[t] = new Thread(() -> {
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    String token = registry.login(user);
+                    for (int i = 0; i < CHECKS_PER_LOGIN; i++) {
+                        if (!registry.isLoggedIn(token)) {
+                            throw new IllegalStateException("Lost session of " + user);
+                        }
+                    }
+                    if (!registry.logout(token)) {
+                        throw new IllegalStateException("Could not log out " + user);
+                    }
+                    done += CHECKS_PER_LOGIN + 2;
+                }
+                operations.add(done);
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() * 1e9 / (System.nanoTime() - start);
+    }
+}
+
+// Stress check for Ledger: threads move money between a few hot accounts
+// and pay random amounts in and out, then the books are balanced. Every
+// transfer is a withdraw followed by a deposit of what was taken, so the
+// final total must equal the opening total plus deposits minus withdrawals,
+// and a reader thread checks that no balance is ever seen negative.
+// Run with: java LedgerStressTest [threads] [accounts] [operations per thread]
+class LedgerStressTest {
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors() + 2;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int operations = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+        Ledger ledger = new Ledger(accounts);
+        long opening = 0;
+        for (int a = 1; a <= accounts; a++) {
+            ledger.open(a);
+            ledger.deposit(a, 10_000);
+            opening += 10_000;
+        }
+        LongAdder deposited = new LongAdder();
+        LongAdder withdrawn = new LongAdder();
+        LongAdder refused = new LongAdder();
+        AtomicBoolean negative = new AtomicBoolean();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                for (int a = 1; a <= accounts; a++) {
+                    if (ledger.balance(a) < 0) {
+                        negative.set(true);
+                    }
+                }
+            }
+        });
+        reader.start();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < operations; i++) {
+                    long from = 1 + random.nextInt(accounts);
+                    long amount = 1 + random.nextInt(5_000);
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            ledger.deposit(from, amount);
+                            deposited.add(amount);
+                            break;
+                        case 1:
+                            if (ledger.withdraw(from, amount) >= 0) {
+                                withdrawn.add(amount);
+                            } else {
+                                refused.increment();
+                            }
+                            break;
+                        default:
+                            long to = 1 + random.nextInt(accounts);
+                            if (ledger.withdraw(from, amount) >= 0) {
+                                ledger.deposit(to, amount);
+                            } else {
+                                refused.increment();
+                            }
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        done.set(true);
+        reader.join();
+
+        long expected = opening + deposited.sum() - withdrawn.sum();
+        long total = ledger.total();
+        System.out.printf("%d threads x %d operations on %d accounts in %.2f s (%d refused for overdraft)%n",
+                threads, operations, accounts, elapsed / 1e9, refused.sum());
+        System.out.println("Expected total " + Ledger.format(expected) + ", ledger total " + Ledger.format(total));
+        if (total != expected || negative.get()) {
+            throw new IllegalStateException(negative.get() ? "Saw a negative balance" : "Money was lost or created");
+        }
+        System.out.println("OK");
+    }
+}
+
+// Throughput benchmark for Ledger: each thread runs a deposit / withdraw /
+// balance mix against either 16 hot accounts or 1M accounts, and the rate is
+// printed per thread count up to twice the core count. JMH is not available
+// in this project, so this warms up once per case and times fixed-length
+// runs the same way SessionBenchmark does.
+// Run with: java LedgerBenchmark [seconds per run]
+class LedgerBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        long millis = (long) (args.length > 0 ? Double.parseDouble(args[0]) * 1000 : 2000);
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d cores, %d ms per run%n", cores, millis);
+        for (int accounts : new int[] {16, 1_000_000}) {
+            Ledger ledger = new Ledger(accounts);
+            for (int a = 1; a <= accounts; a++) {
+                ledger.open(a);
+                ledger.deposit(a, 1_000_000);
+            }
+            System.out.printf("%n%d accounts%n", accounts);
+            // Warm-up, not reported
+            run(ledger, accounts, cores, millis);
+            System.out.printf("%8s %15s %10s%n", "threads", "ops/s", "scaling");
+            double single = 0;
+            for (int threads = 1; threads <= 2 * cores || threads == 1; threads *= 2) {
+                double rate = run(ledger, accounts, threads, millis);
+                single = threads == 1 ? rate : single;
+                System.out.printf("%8d %15.0f %9.2fx%n", threads, rate, rate / single);
+            }
+        }
+    }
+
+    private static double run(Ledger ledger, int accounts, int threads, long millis) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                long sink = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 64; i++) {
+                        long account = 1 + random.nextInt(accounts);
+                        switch (i & 3) {
+                            case 0:
+                                ledger.deposit(account, 100);
+                                break;
+                            case 1:
+                                sink += ledger.withdraw(account, 100);
+                                break;
+                            default:
+                                sink += ledger.balance(account);
+                        }
+                    }
+                    done += 64;
+                }
+                operations.add(done + (sink == 42 ? 1 : 0));
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() * 1e9 / (System.nanoTime() - start);
+    }
+}
+
+// Recovery check for Journal: threads deposit and withdraw through a
+// journal with a checkpoint taken halfway and four threads checkpointing
+// over and over during the second half, then a half-written record is
+// appended to simulate a crash mid-write. Reopening into an empty ledger
+// must give back exactly the balances the first ledger ended with.
+// Run with: java JournalRecoveryCheck [directory]
+class JournalRecoveryCheck {
+    public static void main(String[] args) throws Exception {
+        Path directory = args.length > 0 ? Paths.get(args[0]) : Files.createTempDirectory("journal-check");
+        int accounts = 1000;
+        int threads = 8;
+        Ledger ledger = new Ledger(accounts);
+        try (Journal journal = Journal.open(directory, ledger, 64, 200)) {
+            for (int a = 1; a <= accounts; a++) {
+                journal.openAccount(a, "user" + a);
+            }
+            runClients(journal, accounts, threads, 5_000);
+            journal.checkpoint();
+            AtomicBoolean clientsDone = new AtomicBoolean();
+            AtomicReference<Exception> checkpointFailure = new AtomicReference<>();
+            Thread[] checkpointers = new Thread[4];
+            for (int t = 0; t < checkpointers.length; t++) {
+                checkpointers[t] = new Thread(() -> {
+                    try {
+                        while (!clientsDone.get()) {
+                            journal.checkpoint();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        checkpointFailure.compareAndSet(null, e);
+                    }
+                });
+                checkpointers[t].start();
+            }
+            runClients(journal, accounts, threads, 5_000);
+            clientsDone.set(true);
+            for (Thread checkpointer : checkpointers) {
+                checkpointer.join();
+            }
+            if (checkpointFailure.get() != null) {
+                throw new IllegalStateException("Checkpoint failed", checkpointFailure.get());
+            }
+        }
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path segment : segments) {
+                Files.write(segment, new byte[] {0, 0, 0, 17, 1, 2, 3}, StandardOpenOption.APPEND);
+            }
+        }
+
+        long start = System.nanoTime();
+        Ledger recovered = new Ledger(accounts);
+        try (Journal journal = Journal.open(directory, recovered, 64, 200)) {
+            System.out.printf("Recovered %d accounts in %.1f ms%n", journal.getAccounts().size(), (System.nanoTime() - start) / 1e6);
+            for (int a = 1; a <= accounts; a++) {
+                if (recovered.balance(a) != ledger.balance(a) || journal.getAccounts().get("user" + a) != a) {
+                    throw new IllegalStateException("Account " + a + ": expected " + ledger.balance(a) + ", recovered " + recovered.balance(a));
+                }
+            }
+            journal.deposit(1, 1);
+        }
+        try (Journal journal = Journal.open(directory, new Ledger(accounts), 1, 0)) {
+            if (journal.getLedger().balance(1) != recovered.balance(1)) {
+                throw new IllegalStateException("Lost the deposit made after recovery");
+            }
+        }
+        System.out.println("Total " + Ledger.format(recovered.total()) + " OK");
+    }
+
+    private static void runClients(Journal journal, int accounts, int threads, int operations) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < operations; i++) {
+                    long account = 1 + random.nextInt(accounts);
+                    if (random.nextBoolean()) {
+                        journal.deposit(account, 1 + random.nextInt(10_000));
+                    } else {
+                        journal.withdraw(account, 1 + random.nextInt(10_000));
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+}
+
+// Group commit benchmark for Journal: 64 threads make deposits for a fixed
+// time at each group size, and the table shows commits per second and the
+// median and p99 time from call to durable return.
+// Run with: java JournalBenchmark [directory] [seconds per run]
+class JournalBenchmark {
+    private static final int THREADS = 64;
+    private static final int SAMPLES_PER_THREAD = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        Path root = args.length > 0 ? Files.createDirectories(Paths.get(args[0])) : Files.createTempDirectory("journal-bench");
+        long millis = (long) (args.length > 1 ? Double.parseDouble(args[1]) * 1000 : 3000);
+        System.out.printf("%d threads, %d ms per run, journal in %s%n", THREADS, millis, root);
+        System.out.printf("%10s %10s %14s %12s %12s%n", "group", "delay us", "commits/s", "p50 us", "p99 us");
+        int[] groups = {1, 8, 64, 512};
+        long[] delays = {0, 1000};
+        for (long delay : delays) {
+            for (int group : groups) {
+                Path directory = Files.createTempDirectory(root, "g" + group + "-");
+                Ledger ledger = new Ledger(THREADS);
+                try (Journal journal = Journal.open(directory, ledger, group, delay)) {
+                    for (int a = 1; a <= THREADS; a++) {
+                        journal.openAccount(a, "user" + a);
+                    }
+                    run(journal, millis / 4, null, null);
+                    long[] latencies = new long[THREADS * SAMPLES_PER_THREAD];
+                    int[] counts = new int[THREADS];
+                    double rate = run(journal, millis, latencies, counts);
+                    long[] taken = collect(latencies, counts);
+                    Arrays.sort(taken);
+                    System.out.printf("%10d %10d %14.0f %12.1f %12.1f%n", group, delay, rate,
+                            taken[taken.length / 2] / 1e3, taken[(int) (taken.length * 0.99)] / 1e3);
+                }
+            }
+        }
+    }
+
+    // Returns commits per second; records each thread's latencies and their
+    // count when latencies is given
+    private static double run(Journal journal, long millis, long[] latencies, int[] counts) throws InterruptedException {
+        LongAdder commits = new LongAdder();
+        Thread[] workers = new Thread[THREADS];
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                int count = 0;
+                long done = 0;
+                long now = System.nanoTime();
+                while (now < deadline) {
+                    journal.deposit(thread + 1, 100);
+                    long end = System.nanoTime();
+                    if (latencies != null && count < SAMPLES_PER_THREAD) {
+                        latencies[thread * SAMPLES_PER_THREAD + count++] = end - now;
+                    }
+                    now = end;
+                    done++;
+                }
+                if (counts != null) {
+                    counts[thread] = count;
+                }
+                commits.add(done);
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return commits.sum() * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static long[] collect(long[] latencies, int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] taken = new long[Math.max(1, total)];
+        int next = 0;
+        for (int t = 0; t < counts.length; t++) {
+            System.arraycopy(latencies, t * SAMPLES_PER_THREAD, taken, next, counts[t]);
+            next += counts[t];
+        }
+        return taken;
+    }
+}
+
+// Load generator for the session and banking layer. Every simulated user
+// logs in, performs a number of balance checks, deposits and withdrawals
+// picked by the operation mix, and logs out, with an exponentially
+// distributed think time before each step, until the run ends. Each
+// operation's latency goes into its own histogram, and the report shows
+// per-operation throughput and percentiles for every user count. Once the
+// run ends, users log out at their next step instead of finishing the session.
+//
+// Users run on virtual threads when the JDK has them (21+). Older JDKs get a
+// scheduled pool of platform threads instead, where each user is rescheduled
+// after every think time; a user is a small state machine either way, so
+// both modes drive exactly the same calls.
+// Run with: java LoadGenerator [users, e.g. 10000,100000,1000000]
+//     [seconds per run] [mean think ms] [operations per session]
+//     [mix view:deposit:withdraw]
+class LoadGenerator {
+    enum Operation {
+        LOGIN, VIEW_BALANCE, DEPOSIT, WITHDRAW, LOGOUT
+    }
+
+    // Log-linear latency histogram: 16 sub-buckets per power of two of
+    // nanoseconds, so values are kept to within about 6%
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(0, nanos)));
+            total.increment();
+            max.accumulate(nanos);
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // Upper bound of the bucket holding the given fraction of samples
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count());
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(upperBound(i), max());
+                }
+            }
+            return max();
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket >>> SUB_BITS) - 1;
+            return ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)) + 1) << shift) - 1;
+        }
+    }
+
+    private final UserSession userSession;
+    private final BankingOperations operations;
+    private final long thinkMicros;
+    private final int operationsPerSession;
+    private final int[] mix;
+    private final long deadline;
+    private final Histogram[] histograms = new Histogram[Operation.values().length];
+    private final CountDownLatch finished;
+    private ScheduledExecutorService scheduler;
+
+    LoadGenerator(BankingOperations operations, int users, long thinkMillis, int operationsPerSession, int[] mix, long deadline) {
+        this.userSession = UserSession.getInstance();
+        this.operations = operations;
+        this.thinkMicros = thinkMillis * 1000;
+        this.operationsPerSession = operationsPerSession;
+        this.mix = mix;
+        this.deadline = deadline;
+        this.finished = new CountDownLatch(users);
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    // One simulated user; step() performs its next call
+    private final class User implements Runnable {
+        private final String name;
+        private String token;
+        private int remaining;
+
+        User(String name) {
+            this.name = name;
+        }
+
+        // Returns the think time in microseconds before the next step, or
+        // -1 once the run is over and the user has logged out
+        long step() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long start = System.nanoTime();
+            Operation operation;
+            if (token == null) {
+                if (start >= deadline) {
+                    return -1;
+                }
+                token = userSession.login(name);
+                remaining = operationsPerSession;
+                operation = Operation.LOGIN;
+            } else if (remaining > 0 && start < deadline) {
+                remaining--;
+                int pick = random.nextInt(mix[0] + mix[1] + mix[2]);
+                if (pick < mix[0]) {
+                    operations.viewBalance(token);
+                    operation = Operation.VIEW_BALANCE;
+                } else if (pick < mix[0] + mix[1]) {
+                    operations.deposit(token, 1 + random.nextInt(100));
+                    operation = Operation.DEPOSIT;
+                } else {
+                    operations.withdraw(token, 1 + random.nextInt(100));
+                    operation = Operation.WITHDRAW;
+                }
+            } else {
+                userSession.logout(token);
+                token = null;
+                operation = Operation.LOGOUT;
+            }
+            histograms[operation.ordinal()].record(System.nanoTime() - start);
+            return think(random);
+        }
+
+        // Scheduled mode: run one step and come back after the think time
+        @Override
+        public void run() {
+            long delay = step();
+            if (delay < 0) {
+                finished.countDown();
+            } else {
+                scheduler.schedule(this, delay, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        // Virtual thread mode: the whole life of the user on one thread
+        void live(long initialDelay) {
+            try {
+                Thread.sleep(initialDelay / 1000, (int) (initialDelay % 1000) * 1000);
+                for (long delay = step(); delay >= 0; delay = step()) {
+                    if (delay > 0) {
+                        Thread.sleep(delay / 1000, (int) (delay % 1000) * 1000);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    private long think(ThreadLocalRandom random) {
+        return thinkMicros == 0 ? 0 : (long) (-thinkMicros * Math.log(1 - random.nextDouble()));
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() if this JDK has it
+    static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    // Start users spread evenly over the first think time and wait for all
+    // of them to log out after the deadline
+    void run(int users, ExecutorService virtual) throws InterruptedException {
+        long spread = Math.max(thinkMicros, 1);
+        if (virtual == null) {
+            scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+        for (int i = 0; i < users; i++) {
+            User user = new User("load" + i);
+            long initialDelay = spread * i / users;
+            if (virtual != null) {
+                virtual.execute(() -> user.live(initialDelay));
+            } else {
+                scheduler.schedule(user, initialDelay, TimeUnit.MICROSECONDS);
+            }
+        }
+        finished.await();
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    void report(double seconds) {
+        System.out.printf("%14s %12s %10s %10s %10s %10s %10s%n", "operation", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        long all = 0;
+        for (Operation operation : Operation.values()) {
+            Histogram histogram = histograms[operation.ordinal()];
+            all += histogram.count();
+            System.out.printf("%14s %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f%n", operation, histogram.count() / seconds,
+                    histogram.percentile(0.50) / 1e3, histogram.percentile(0.90) / 1e3, histogram.percentile(0.99) / 1e3,
+                    histogram.percentile(0.999) / 1e3, histogram.max() / 1e3);
+        }
+        System.out.printf("%14s %12.0f%n", "total", all / seconds);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] userCounts = (args.length > 0 ? args[0] : "10000,100000,1000000").split(",");
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+        long thinkMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        int operationsPerSession = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        String[] weights = (args.length > 4 ? args[4] : "50:25:25").split(":");
+        int[] mix = {Integer.parseInt(weights[0]), Integer.parseInt(weights[1]), Integer.parseInt(weights[2])};
+
+        ExecutorService virtual = virtualThreads();
+        System.out.printf("%s, %d s per run, think %d ms, %d operations per session, mix view:deposit:withdraw %d:%d:%d%n",
+                virtual != null ? "virtual threads" : "no virtual threads in this JDK, scheduled pool of "
+                        + Runtime.getRuntime().availableProcessors() + " platform threads",
+                seconds, thinkMillis, operationsPerSession, mix[0], mix[1], mix[2]);
+        UserSession.getInstance().setVerbose(false);
+        for (String count : userCounts) {
+            int users = Integer.parseInt(count.trim());
+            try (BankingOperations operations = new BankingOperations(new Ledger(users))) {
+                operations.setVerbose(false);
+                long start = System.nanoTime();
+                LoadGenerator generator = new LoadGenerator(operations, users, thinkMillis, operationsPerSession, mix,
+                        start + seconds * 1_000_000_000L);
+                generator.run(users, virtual);
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%n%d users, %.1f s%n", users, elapsed);
+                generator.report(elapsed);
+            }
+        }
+        if (virtual != null) {
+            virtual.shutdown();
         }
     }
 }
@@ -94,26 +2012,29 @@ public class Main {
         BankingOperations operations = new BankingOperations();
 
         // Attempt to perform operations without logging in
-        operations.viewBalance();
-        operations.deposit(1000);
-        operations.withdraw(500);
+        operations.viewBalance(null);
+        operations.deposit(null, 1000);
+        operations.withdraw(null, 500);
 
         // Log in the user
         UserSession userSession = UserSession.getInstance();
-        userSession.login("Manikiran");
+        String session = userSession.login("Manikiran");
 
         // Perform operations after logging in
-        operations.viewBalance();
-        operations.deposit(1000);
-        operations.withdraw(500);
+        operations.viewBalance(session);
+        operations.deposit(session, 1000);
+        operations.withdraw(session, 500);
 
-        // Attempt to log in another user
-        userSession.login("AnotherUser");
+        // Log in another user at the same time
+        String otherSession = userSession.login("AnotherUser");
+        operations.viewBalance(otherSession);
+        operations.withdraw(otherSession, 50);
 
         // Log out the user
-        userSession.logout();
+        userSession.logout(session);
 
         // Attempt to perform operations after logging out
-        operations.viewBalance();
+        operations.viewBalance(session);
+        userSession.logout(otherSession);
     }
 }
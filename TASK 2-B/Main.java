@@ -1,11 +1,54 @@
-// Singleton class to manage user authentication
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Singleton class to manage user authentication. A login ends 8 hours after
+// it started or after 15 minutes without activity; checking it counts as
+// activity and only stores the current time, without a lock.
 class UserAuthentication {
+    private static final long SESSION_TTL_MILLIS = 8 * 60 * 60 * 1000L;
+    private static final long IDLE_TIMEOUT_MILLIS = 15 * 60 * 1000L;
+
     private static UserAuthentication instance;
-    private String authenticatedUser;
+    private volatile Login current;
+    private TimingWheel wheel;
+    private final List<Consumer<String>> expiryListeners = new CopyOnWriteArrayList<>();
+
+    // The logged-in user and when the login runs out
+    private final class Login implements TimingWheel.Expirable {
+        final String user;
+        final long hardDeadline;
+        volatile long lastAccess;
+        TimingWheel.Timeout timeout;
+
+        Login(String user, long now) {
+            this.user = user;
+            this.hardDeadline = now + SESSION_TTL_MILLIS;
+            this.lastAccess = now;
+        }
+
+        @Override
+        public long expiresAt() {
+            return Math.min(hardDeadline, lastAccess + IDLE_TIMEOUT_MILLIS);
+        }
+
+        @Override
+        public void expire() {
+            UserAuthentication.this.expire(this);
+        }
+    }
 
     // Private constructor to prevent instantiation
     private UserAuthentication() {
-        authenticatedUser = null;
+        current = null;
     }
 
     // Public method to provide access to the single instance of UserAuthentication
@@ -21,9 +64,15 @@ class UserAuthentication {
     }
 
     // Method to log in the user
-    public void login(String username) {
+    public synchronized void login(String username) {
+        String authenticatedUser = getAuthenticatedUser();
         if (authenticatedUser == null) {
-            authenticatedUser = username;
+            if (wheel == null) {
+                wheel = new TimingWheel(100, "authentication-expiry");
+            }
+            Login login = new Login(username, wheel.currentTimeMillis());
+            login.timeout = wheel.schedule(login);
+            current = login;
             System.out.println(username + " has logged in successfully.");
         } else {
             System.out.println("User " + authenticatedUser + " is already logged in.");
@@ -31,10 +80,12 @@ class UserAuthentication {
     }
 
     // Method to log out the user
-    public void logout() {
-        if (authenticatedUser != null) {
-            System.out.println(authenticatedUser + " has logged out successfully.");
-            authenticatedUser = null;
+    public synchronized void logout() {
+        Login login = current;
+        if (login != null && getAuthenticatedUser() != null) {
+            System.out.println(login.user + " has logged out successfully.");
+            current = null;
+            wheel.cancel(login.timeout);
         } else {
             System.out.println("No user is currently logged in.");
         }
@@ -42,12 +93,255 @@ class UserAuthentication {
 
     // Method to check if a user is authenticated
     public boolean isAuthenticated() {
-        return authenticatedUser != null;
+        return getAuthenticatedUser() != null;
     }
 
-    // Method to get the authenticated user
+    // Method to get the authenticated user; null once the login has run out
     public String getAuthenticatedUser() {
-        return authenticatedUser;
+        Login login = current;
+        if (login == null) {
+            return null;
+        }
+        long now = wheel.currentTimeMillis();
+        if (login.expiresAt() <= now) {
+            return null;
+        }
+        if (login.lastAccess != now) {
+            login.lastAccess = now;
+        }
+        return login.user;
+    }
+
+    // Called on the expiry thread with the user whose login timed out
+    public void addExpiryListener(Consumer<String> listener) {
+        expiryListeners.add(listener);
+    }
+
+    private void expire(Login login) {
+        synchronized (this) {
+            if (current != login) {
+                return;
+            }
+            current = null;
+        }
+        for (Consumer<String> listener : expiryListeners) {
+            try {
+                listener.accept(login.user);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+// Hierarchical timing wheel (4 levels of 64 slots) run by one daemon ticker
+// thread. Scheduling and cancelling are queued for the ticker; each tick
+// cascades the higher-level slots that came round and fires the current
+// one, so a timeout costs O(1). A firing timeout re-reads its target's
+// deadline and is placed again if it moved, so refreshing costs nothing here.
+class TimingWheel implements AutoCloseable {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 4;
+
+    // Something the wheel can expire
+    interface Expirable {
+        // Current deadline in epoch millis; Long.MAX_VALUE for none
+        long expiresAt();
+
+        // Called on the ticker thread once the deadline has passed
+        void expire();
+    }
+
+    // A scheduled target, linked into one slot's list
+    static final class Timeout {
+        final Expirable target;
+        long deadline;
+        Timeout prev;
+        Timeout next;
+        volatile boolean cancelled;
+
+        Timeout(Expirable target) {
+            this.target = target;
+        }
+    }
+
+    private final long tickMillis;
+    private final long origin;
+    // Sentinel of each slot's circular list
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread ticker;
+    // Ticker thread only: last tick fired, and the first tick still open for new timeouts
+    private long tick;
+    private long firstOpen = 1;
+    private volatile long now;
+    private volatile boolean running = true;
+
+    TimingWheel(long tickMillis, String name) {
+        this.tickMillis = tickMillis;
+        for (Timeout[] level : slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                Timeout sentinel = new Timeout(null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+        }
+        origin = System.currentTimeMillis();
+        now = origin;
+        ticker = new Thread(this::run, name);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // Clock updated every tick; cheaper than System.currentTimeMillis()
+    long currentTimeMillis() {
+        return now;
+    }
+
+    Timeout schedule(Expirable target) {
+        Timeout timeout = new Timeout(target);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    void cancel(Timeout timeout) {
+        timeout.cancelled = true;
+        cancelled.add(timeout);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long wait = origin + (tick + 1) * tickMillis - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            now = System.currentTimeMillis();
+            drainRequests();
+            // Catch up if the thread was held up for several ticks
+            while (origin + (tick + 1) * tickMillis <= now) {
+                advance();
+            }
+        }
+    }
+
+    private void drainRequests() {
+        for (Timeout timeout; (timeout = scheduled.poll()) != null; ) {
+            if (!timeout.cancelled) {
+                timeout.deadline = timeout.target.expiresAt();
+                if (timeout.deadline != Long.MAX_VALUE) {
+                    place(timeout);
+                }
+            }
+        }
+        for (Timeout timeout; (timeout = cancelled.poll()) != null; ) {
+            if (timeout.next != null) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    private void advance() {
+        tick++;
+        firstOpen = tick;
+        // Cascade from the highest level that came round, so timeouts moving
+        // down several levels still land in a slot that is yet to come
+        int top = 0;
+        while (top < LEVELS - 1 && (tick & ((1L << (BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+        for (int level = top; level > 0; level--) {
+            for (Timeout timeout = detach(slots[level][(int) (tick >>> (BITS * level)) & (SLOTS - 1)]); timeout != null; ) {
+                Timeout next = timeout.next;
+                timeout.prev = null;
+                timeout.next = null;
+                place(timeout);
+                timeout = next;
+            }
+        }
+        firstOpen = tick + 1;
+        for (Timeout timeout = detach(slots[0][(int) tick & (SLOTS - 1)]); timeout != null; ) {
+            Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+            fire(timeout);
+            timeout = next;
+        }
+    }
+
+    private void fire(Timeout timeout) {
+        if (timeout.cancelled) {
+            return;
+        }
+        long deadline = timeout.target.expiresAt();
+        if (deadline > now) {
+            if (deadline != Long.MAX_VALUE) {
+                timeout.deadline = deadline;
+                place(timeout);
+            }
+            return;
+        }
+        try {
+            timeout.target.expire();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Link a timeout into the slot for its deadline, relative to the current tick
+    private void place(Timeout timeout) {
+        long offset = timeout.deadline - origin;
+        long due = Math.max(offset <= 0 ? 0 : (offset - 1) / tickMillis + 1, firstOpen);
+        long delta = due - tick;
+        if (delta >= 1L << (BITS * LEVELS)) {
+            due = tick + (1L << (BITS * LEVELS)) - 1;
+            delta = due - tick;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        Timeout sentinel = slots[level][(int) (due >>> (BITS * level)) & (SLOTS - 1)];
+        timeout.prev = sentinel.prev;
+        timeout.next = sentinel;
+        sentinel.prev.next = timeout;
+        sentinel.prev = timeout;
+    }
+
+    private static void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    // Empty a slot and return its first timeout; the list ends in null
+    private static Timeout detach(Timeout sentinel) {
+        if (sentinel.next == sentinel) {
+            return null;
+        }
+        Timeout first = sentinel.next;
+        sentinel.prev.next = null;
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+        return first;
     }
 }
 
@@ -91,6 +385,384 @@ class VehicleFactory {
     }
 }
 
+// Ride dispatch over a live fleet. Vehicles come from VehicleFactory and are
+// kept in a uniform grid of square cells laid over the service area, with a
+// separate member list per cell and vehicle type, so a query only looks at
+// vehicles of the type asked for. Positions are projected to meters from
+// the area's south-west corner and packed into one volatile long, so a
+// reader never sees half of an update.
+//
+// A nearest-vehicle query walks rings of cells outward from the rider and
+// stops once no unvisited ring can hold anything closer than the best match;
+// it takes no locks. Member lists are copy-on-write arrays changed under the
+// cell's monitor, which only happens when an available vehicle crosses into
+// another cell, is dispatched or is released. Each vehicle's own monitor
+// orders those changes, so position updates can stream in from any thread
+// and the index is never rebuilt.
+class Dispatcher {
+    static final String[] TYPES = {"Car", "Bike", "Scooter"};
+    private static final double METERS_PER_DEGREE = 111_320;
+    private static final FleetVehicle[] EMPTY = new FleetVehicle[0];
+
+    // A vehicle of the fleet and where it is
+    static final class FleetVehicle {
+        private final int id;
+        private final String type;
+        private final int typeIndex;
+        private final Vehicle vehicle;
+        // x meters in the high half, y meters in the low half
+        volatile long position;
+        // Written under this vehicle's monitor
+        volatile boolean available;
+        int cell;
+
+        FleetVehicle(int id, String type, int typeIndex, Vehicle vehicle) {
+            this.id = id;
+            this.type = type;
+            this.typeIndex = typeIndex;
+            this.vehicle = vehicle;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public Vehicle getVehicle() {
+            return vehicle;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+    }
+
+    // Available vehicles of one type in one cell
+    private static final class Cell {
+        volatile FleetVehicle[] members = EMPTY;
+    }
+
+    private final VehicleFactory factory = new VehicleFactory();
+    private final double minLatitude;
+    private final double minLongitude;
+    private final double metersPerDegreeLongitude;
+    private final int cellMeters;
+    private final int columns;
+    private final int rows;
+    // Indexed by type * rows * columns + row * columns + column
+    private final Cell[] cells;
+    private final AtomicReferenceArray<FleetVehicle> vehicles;
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    Dispatcher(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int cellMeters, int capacity) {
+        if (maxLatitude <= minLatitude || maxLongitude <= minLongitude || cellMeters <= 0) {
+            throw new IllegalArgumentException("Invalid service area or cell size");
+        }
+        this.minLatitude = minLatitude;
+        this.minLongitude = minLongitude;
+        this.metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians((minLatitude + maxLatitude) / 2));
+        this.cellMeters = cellMeters;
+        this.columns = (int) Math.ceil((maxLongitude - minLongitude) * metersPerDegreeLongitude / cellMeters);
+        this.rows = (int) Math.ceil((maxLatitude - minLatitude) * METERS_PER_DEGREE / cellMeters);
+        this.cells = new Cell[TYPES.length * rows * columns];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new Cell();
+        }
+        this.vehicles = new AtomicReferenceArray<>(capacity);
+    }
+
+    // Add an available vehicle of the given type; returns its id
+    int addVehicle(String type, double latitude, double longitude) {
+        int typeIndex = typeIndex(type);
+        int id = nextId.getAndIncrement();
+        if (id >= vehicles.length()) {
+            throw new IllegalStateException("Fleet is full");
+        }
+        FleetVehicle vehicle = new FleetVehicle(id, type, typeIndex, factory.createVehicle(type));
+        vehicle.position = project(latitude, longitude);
+        vehicles.set(id, vehicle);
+        release(id);
+        return id;
+    }
+
+    FleetVehicle getVehicle(int id) {
+        FleetVehicle vehicle = id >= 0 && id < vehicles.length() ? vehicles.get(id) : null;
+        if (vehicle == null) {
+            throw new IllegalArgumentException("No such vehicle: " + id);
+        }
+        return vehicle;
+    }
+
+    int size() {
+        return Math.min(nextId.get(), vehicles.length());
+    }
+
+    // Record a new position reported by a vehicle
+    void updatePosition(int id, double latitude, double longitude) {
+        FleetVehicle vehicle = getVehicle(id);
+        long position = project(latitude, longitude);
+        int cell = cellOf(vehicle.typeIndex, position);
+        synchronized (vehicle) {
+            vehicle.position = position;
+            if (vehicle.available && vehicle.cell != cell) {
+                remove(vehicle);
+                vehicle.cell = cell;
+                add(vehicle);
+            }
+        }
+    }
+
+    // Nearest available vehicle of the type within maxMeters, or null
+    FleetVehicle findNearest(String type, double latitude, double longitude, int maxMeters) {
+        int typeIndex = typeIndex(type);
+        long position = project(latitude, longitude);
+        int x = (int) (position >> 32);
+        int y = (int) position;
+        // Clamp riders outside the area onto it; distances to vehicles only grow
+        int gridX = Math.max(0, Math.min(x, columns * cellMeters - 1));
+        int gridY = Math.max(0, Math.min(y, rows * cellMeters - 1));
+        int column = gridX / cellMeters;
+        int row = gridY / cellMeters;
+        int edge = Math.min(Math.min(gridX - column * cellMeters, (column + 1) * cellMeters - gridX),
+                Math.min(gridY - row * cellMeters, (row + 1) * cellMeters - gridY));
+        long limit = (long) maxMeters * maxMeters;
+        FleetVehicle best = null;
+        long bestDistance = Long.MAX_VALUE;
+        int base = typeIndex * rows * columns;
+        int lastRing = Math.max(Math.max(column, columns - 1 - column), Math.max(row, rows - 1 - row));
+        for (int ring = 0; ring <= lastRing; ring++) {
+            if (ring > 0) {
+                // Closest any cell of this ring can be
+                long reach = (long) (ring - 1) * cellMeters + edge;
+                if (reach * reach > Math.min(bestDistance, limit)) {
+                    break;
+                }
+            }
+            for (int r = row - ring; r <= row + ring; r++) {
+                if (r < 0 || r >= rows) {
+                    continue;
+                }
+                int step = r == row - ring || r == row + ring ? 1 : Math.max(1, 2 * ring);
+                for (int c = column - ring; c <= column + ring; c += step) {
+                    if (c < 0 || c >= columns) {
+                        continue;
+                    }
+                    for (FleetVehicle candidate : cells[base + r * columns + c].members) {
+                        long at = candidate.position;
+                        long dx = (long) (int) (at >> 32) - x;
+                        long dy = (long) (int) at - y;
+                        long distance = dx * dx + dy * dy;
+                        if (distance < bestDistance && distance <= limit && candidate.available) {
+                            best = candidate;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    // Take the nearest available vehicle of the type off the market, or
+    // return null if none is within maxMeters
+    FleetVehicle dispatch(String type, double latitude, double longitude, int maxMeters) {
+        while (true) {
+            FleetVehicle vehicle = findNearest(type, latitude, longitude, maxMeters);
+            if (vehicle == null || claim(vehicle)) {
+                return vehicle;
+            }
+            // Someone else got it first; look again
+        }
+    }
+
+    // Make a vehicle available again, e.g. at the end of a ride
+    void release(int id) {
+        FleetVehicle vehicle = getVehicle(id);
+        synchronized (vehicle) {
+            if (!vehicle.available) {
+                vehicle.cell = cellOf(vehicle.typeIndex, vehicle.position);
+                add(vehicle);
+                vehicle.available = true;
+            }
+        }
+    }
+
+    double distanceMeters(FleetVehicle vehicle, double latitude, double longitude) {
+        long from = vehicle.position;
+        long to = project(latitude, longitude);
+        return Math.hypot((int) (from >> 32) - (int) (to >> 32), (int) from - (int) to);
+    }
+
+    private boolean claim(FleetVehicle vehicle) {
+        synchronized (vehicle) {
+            if (!vehicle.available) {
+                return false;
+            }
+            vehicle.available = false;
+            remove(vehicle);
+            return true;
+        }
+    }
+
+    // Call with the vehicle's monitor held
+    private void add(FleetVehicle vehicle) {
+        Cell cell = cells[vehicle.cell];
+        synchronized (cell) {
+            FleetVehicle[] members = cell.members;
+            FleetVehicle[] grown = Arrays.copyOf(members, members.length + 1);
+            grown[members.length] = vehicle;
+            cell.members = grown;
+        }
+    }
+
+    // Call with the vehicle's monitor held
+    private void remove(FleetVehicle vehicle) {
+        Cell cell = cells[vehicle.cell];
+        synchronized (cell) {
+            FleetVehicle[] members = cell.members;
+            for (int i = 0; i < members.length; i++) {
+                if (members[i] == vehicle) {
+                    FleetVehicle[] shrunk = members.length == 1 ? EMPTY : new FleetVehicle[members.length - 1];
+                    System.arraycopy(members, 0, shrunk, 0, i);
+                    System.arraycopy(members, i + 1, shrunk, i, members.length - i - 1);
+                    cell.members = shrunk;
+                    return;
+                }
+            }
+        }
+    }
+
+    private int cellOf(int typeIndex, long position) {
+        int column = Math.max(0, Math.min((int) (position >> 32) / cellMeters, columns - 1));
+        int row = Math.max(0, Math.min((int) position / cellMeters, rows - 1));
+        return typeIndex * rows * columns + row * columns + column;
+    }
+
+    private long project(double latitude, double longitude) {
+        long x = Math.round((longitude - minLongitude) * metersPerDegreeLongitude);
+        long y = Math.round((latitude - minLatitude) * METERS_PER_DEGREE);
+        return x << 32 | (y & 0xffffffffL);
+    }
+
+    private static int typeIndex(String type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown vehicle type: " + type);
+    }
+}
+
+// Benchmark for Dispatcher: 1M vehicles spread over a 40 x 40 km area.
+// First 200 random queries are checked against a full scan of the fleet,
+// then updater threads stream position changes (a walk of up to 20 m per
+// update) while the main thread times nearest-vehicle queries and
+// dispatch-and-release round trips.
+// Run with: java DispatchBenchmark [vehicles] [updater threads] [seconds]
+class DispatchBenchmark {
+    private static final double MIN_LATITUDE = 17.20;
+    private static final double MIN_LONGITUDE = 78.25;
+    private static final double SPAN = 0.36;
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int updaters = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        long millis = (long) (args.length > 2 ? Double.parseDouble(args[2]) * 1000 : 5000);
+        Dispatcher dispatcher = new Dispatcher(MIN_LATITUDE, MIN_LONGITUDE, MIN_LATITUDE + SPAN, MIN_LONGITUDE + SPAN, 250, count);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            dispatcher.addVehicle(Dispatcher.TYPES[i % Dispatcher.TYPES.length],
+                    MIN_LATITUDE + random.nextDouble() * SPAN, MIN_LONGITUDE + random.nextDouble() * SPAN);
+        }
+        System.out.printf("Added %d vehicles in %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+
+        for (int i = 0; i < 200; i++) {
+            String type = Dispatcher.TYPES[random.nextInt(Dispatcher.TYPES.length)];
+            double latitude = MIN_LATITUDE - 0.01 + random.nextDouble() * (SPAN + 0.02);
+            double longitude = MIN_LONGITUDE - 0.01 + random.nextDouble() * (SPAN + 0.02);
+            Dispatcher.FleetVehicle found = dispatcher.findNearest(type, latitude, longitude, Integer.MAX_VALUE);
+            double best = Double.MAX_VALUE;
+            for (int id = 0; id < count; id++) {
+                Dispatcher.FleetVehicle vehicle = dispatcher.getVehicle(id);
+                if (vehicle.getType().equals(type)) {
+                    best = Math.min(best, dispatcher.distanceMeters(vehicle, latitude, longitude));
+                }
+            }
+            if (found == null || dispatcher.distanceMeters(found, latitude, longitude) != best) {
+                throw new IllegalStateException("Query " + i + " missed the nearest " + type);
+            }
+        }
+        System.out.println("200 queries match a full scan");
+
+        AtomicBoolean done = new AtomicBoolean();
+        LongAdder updates = new LongAdder();
+        Thread[] threads = new Thread[updaters];
+        for (int t = 0; t < updaters; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom local = ThreadLocalRandom.current();
+                long made = 0;
+                while (!done.get()) {
+                    int id = local.nextInt(count);
+                    long at = dispatcher.getVehicle(id).position;
+                    double latitude = MIN_LATITUDE + ((int) at + local.nextInt(-20, 21)) / 111_320.0;
+                    double longitude = MIN_LONGITUDE + ((int) (at >> 32) + local.nextInt(-20, 21))
+                            / (111_320.0 * Math.cos(Math.toRadians(MIN_LATITUDE + SPAN / 2)));
+                    dispatcher.updatePosition(id, latitude, longitude);
+                    made++;
+                }
+                updates.add(made);
+            });
+            threads[t].start();
+        }
+
+        long[] queries = new long[1 << 20];
+        long[] dispatches = new long[1 << 18];
+        int queryCount = 0;
+        int dispatchCount = 0;
+        start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        while (System.nanoTime() < deadline && dispatchCount < dispatches.length) {
+            for (int i = 0; i < 4 && queryCount < queries.length; i++) {
+                String type = Dispatcher.TYPES[random.nextInt(Dispatcher.TYPES.length)];
+                double latitude = MIN_LATITUDE + random.nextDouble() * SPAN;
+                double longitude = MIN_LONGITUDE + random.nextDouble() * SPAN;
+                long begin = System.nanoTime();
+                dispatcher.findNearest(type, latitude, longitude, 5000);
+                queries[queryCount++] = System.nanoTime() - begin;
+            }
+            double latitude = MIN_LATITUDE + random.nextDouble() * SPAN;
+            double longitude = MIN_LONGITUDE + random.nextDouble() * SPAN;
+            long begin = System.nanoTime();
+            Dispatcher.FleetVehicle vehicle = dispatcher.dispatch("Car", latitude, longitude, 5000);
+            if (vehicle != null) {
+                dispatcher.release(vehicle.getId());
+            }
+            dispatches[dispatchCount++] = System.nanoTime() - begin;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("%d updater threads: %.0f position updates/s%n", updaters, updates.sum() / seconds);
+        report("findNearest", Arrays.copyOf(queries, queryCount), seconds);
+        report("dispatch+release", Arrays.copyOf(dispatches, dispatchCount), seconds);
+    }
+
+    private static void report(String name, long[] latencies, double seconds) {
+        Arrays.sort(latencies);
+        System.out.printf("%-17s %9.0f /s  p50 %6.1f us  p99 %6.1f us  p99.9 %7.1f us  max %8.1f us%n", name,
+                latencies.length / seconds, latencies[latencies.length / 2] / 1e3,
+                latencies[(int) (latencies.length * 0.99)] / 1e3, latencies[(int) (latencies.length * 0.999)] / 1e3,
+                latencies[latencies.length - 1] / 1e3);
+    }
+}
+
 // Abstract PaymentMethod class
 abstract class PaymentMethod {
     public abstract void pay(double amount);
@@ -147,10 +819,19 @@ public class Main {
         userAuth.login("Manikiran");
 
         if (userAuth.isAuthenticated()) {
-            // Factory Method pattern: Creating a vehicle based on user choice
-            VehicleFactory vehicleFactory = new VehicleFactory();
-            Vehicle vehicle = vehicleFactory.createVehicle("Car"); // User chooses a Car
-            vehicle.ride();
+            // Factory Method pattern: The fleet's vehicles come from VehicleFactory
+            Dispatcher dispatcher = new Dispatcher(17.20, 78.25, 17.56, 78.61, 250, 100);
+            dispatcher.addVehicle("Car", 17.4401, 78.3489);
+            dispatcher.addVehicle("Bike", 17.4375, 78.4480);
+            dispatcher.addVehicle("Car", 17.4239, 78.4738);
+
+            // The nearest available Car is dispatched to the user
+            Dispatcher.FleetVehicle ride = dispatcher.dispatch("Car", 17.4375, 78.4482, 10_000);
+            if (ride != null) {
+                System.out.printf("Car %d is %.0f m away.%n", ride.getId(), dispatcher.distanceMeters(ride, 17.4375, 78.4482));
+                ride.getVehicle().ride();
+                dispatcher.release(ride.getId());
+            }
 
             // Abstract Factory pattern: Creating a payment method based on user choice
             PaymentFactory paymentFactory = new CreditCardFactory(); // User chooses Credit Card
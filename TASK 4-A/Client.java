@@ -1,10 +1,83 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 // LogLevel Enum to represent severity levels
 enum LogLevel {
-    INFO, DEBUG, ERROR
+    INFO, DEBUG, ERROR;
+
+    private static final LogLevel[] LEVELS = values();
+
+    // Level named at the start of the message, or null if there is none
+    public static LogLevel parsePrefix(CharSequence message) {
+        for (LogLevel level : LEVELS) {
+            if (startsWith(message, level.name())) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(CharSequence message, String prefix) {
+        if (message.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (message.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+// How Logger.processCommands delivers a message
+enum DispatchMode {
+    // Every command walks its handler chain
+    CHAIN,
+    // The level prefix selects the handlers for that level
+    LEVEL,
+    // Every handler whose keywords occur in the message, found in one pass
+    KEYWORD
 }
 
 // Command interface for logging requests
@@ -20,74 +93,1763 @@ class LogCommand implements Command {
         this.handler = handler;
     }
 
+    public LogHandler getHandler() {
+        return handler;
+    }
+
     @Override
     public void execute(String message) {
-        handler.handleMessage(message);
+        handler.receive(message);
     }
 }
 
 // Abstract class for log handlers
 abstract class LogHandler {
+    // Bumped whenever any chain is relinked or a handler's keywords change,
+    // so compiled routing tables know to rebuild
+    private static final AtomicInteger CHAIN_VERSION = new AtomicInteger();
+
     protected LogHandler nextHandler;
 
+    private final List<String> keywords = new ArrayList<>();
+
+    private final HandlerStats stats = new HandlerStats(this);
+
     public void setNextHandler(LogHandler nextHandler) {
         this.nextHandler = nextHandler;
+        CHAIN_VERSION.incrementAndGet();
+    }
+
+    // Keywords that select this handler in keyword dispatch
+    public void addKeyword(String keyword) {
+        keywords.add(keyword);
+        CHAIN_VERSION.incrementAndGet();
+    }
+
+    public void removeKeyword(String keyword) {
+        if (keywords.remove(keyword)) {
+            CHAIN_VERSION.incrementAndGet();
+        }
+    }
+
+    public List<String> getKeywords() {
+        return Collections.unmodifiableList(keywords);
+    }
+
+    public LogHandler getNextHandler() {
+        return nextHandler;
+    }
+
+    static int chainVersion() {
+        return CHAIN_VERSION.get();
     }
 
     // Handle the message and decide if it should be passed to the next handler
     public abstract void handleMessage(String message);
+
+    // Level this handler accepts when messages are routed by level, or null
+    // if it only takes part in the chain
+    public LogLevel getLevel() {
+        return null;
+    }
+
+    // Output for a message routed straight to this handler. Handlers written
+    // before routing existed don't override it, so by default the message
+    // goes through handleMessage as it always did.
+    public void process(String message) {
+        handleMessage(message);
+    }
+
+    // Output for several accepted messages, in order. Handlers writing to a
+    // slow sink can override this to write the batch in one go.
+    public void handleBatch(List<String> messages) {
+        for (String message : messages) {
+            process(message);
+        }
+    }
+
+    // The methods below are how commands, loggers and other handlers call a
+    // handler, so that Instrumentation can time it. With instrumentation off
+    // they cost one volatile read on top of the call.
+
+    // Run handleMessage for a message entering this handler's chain
+    public final void receive(String message) {
+        ChainTally tally = ChainTally.current();
+        long passes = tally != null ? tally.passes : 0;
+        if (!Instrumentation.isEnabled()) {
+            handleMessage(message);
+        } else {
+            long outer = Instrumentation.enter();
+            long start = System.nanoTime();
+            try {
+                handleMessage(message);
+            } finally {
+                stats.record(Instrumentation.exit(start, outer), 1);
+            }
+        }
+        if (tally != null && tally.passes == passes) {
+            tally.accepted(this);
+        }
+    }
+
+    // Give the message to the next handler, if there is one
+    protected final void passToNext(String message) {
+        ChainTally tally = ChainTally.current();
+        if (tally != null) {
+            tally.passes++;
+        }
+        if (nextHandler != null) {
+            if (Instrumentation.isEnabled()) {
+                stats.passedThrough();
+            }
+            nextHandler.receive(message);
+        }
+    }
+
+    // Run process for a message routed straight to this handler
+    public final void deliver(String message) {
+        if (!Instrumentation.isEnabled()) {
+            process(message);
+            return;
+        }
+        long outer = Instrumentation.enter();
+        long start = System.nanoTime();
+        try {
+            process(message);
+        } finally {
+            stats.record(Instrumentation.exit(start, outer), 1);
+        }
+    }
+
+    // Run handleBatch; the time is recorded as an equal share per message
+    public final void deliverBatch(List<String> messages) {
+        if (!Instrumentation.isEnabled() || messages.isEmpty()) {
+            handleBatch(messages);
+            return;
+        }
+        long outer = Instrumentation.enter();
+        long start = System.nanoTime();
+        try {
+            handleBatch(messages);
+        } finally {
+            stats.record(Instrumentation.exit(start, outer), messages.size());
+        }
+    }
 }
 
 // Concrete handler for INFO level logs
 class InfoHandler extends LogHandler {
+    public InfoHandler() {
+        addKeyword("INFO");
+    }
+
     @Override
     public void handleMessage(String message) {
         if (message.contains("INFO")) {
-            System.out.println("INFO: " + message);
-        } else if (nextHandler != null) {
-            nextHandler.handleMessage(message);
+            process(message);
+        } else {
+            passToNext(message);
         }
     }
+
+    @Override
+    public LogLevel getLevel() {
+        return LogLevel.INFO;
+    }
+
+    @Override
+    public void process(String message) {
+        System.out.println("INFO: " + message);
+    }
 }
 
 // Concrete handler for DEBUG level logs
 class DebugHandler extends LogHandler {
+    public DebugHandler() {
+        addKeyword("DEBUG");
+    }
+
     @Override
     public void handleMessage(String message) {
         if (message.contains("DEBUG")) {
-            System.out.println("DEBUG: " + message);
-        } else if (nextHandler != null) {
-            nextHandler.handleMessage(message);
+            process(message);
+        } else {
+            passToNext(message);
         }
     }
+
+    @Override
+    public LogLevel getLevel() {
+        return LogLevel.DEBUG;
+    }
+
+    @Override
+    public void process(String message) {
+        System.out.println("DEBUG: " + message);
+    }
 }
 
 // Concrete handler for ERROR level logs
 class ErrorHandler extends LogHandler {
+    public ErrorHandler() {
+        addKeyword("ERROR");
+    }
+
     @Override
     public void handleMessage(String message) {
         if (message.contains("ERROR")) {
-            System.out.println("ERROR: " + message);
-        } else if (nextHandler != null) {
-            nextHandler.handleMessage(message);
+            process(message);
+        } else {
+            passToNext(message);
         }
     }
+
+    @Override
+    public LogLevel getLevel() {
+        return LogLevel.ERROR;
+    }
+
+    @Override
+    public void process(String message) {
+        System.out.println("ERROR: " + message);
+    }
+}
+
+// Aho-Corasick automaton over the keywords of a set of handlers: one pass
+// over a message finds every handler with a keyword in it. Keyword
+// characters are numbered and the automaton is a dense table over those
+// numbers (0 = any other character), with failure links already folded in,
+// so each character costs one table lookup. With ignoreCase, characters are
+// folded one at a time while scanning rather than lowercasing the message.
+final class KeywordMatcher {
+    private final LogHandler[] handlers;
+    private final boolean ignoreCase;
+    // Sorted keyword characters; character class = index + 1
+    private final char[] alphabet;
+    private final int[] asciiClasses = new int[128];
+    private final int width;
+    private final int[] transitions;
+    // Handler indexes matched on reaching each state, null if none
+    private final int[][] outputs;
+    private final ThreadLocal<long[]> found;
+
+    KeywordMatcher(List<LogHandler> handlers, boolean ignoreCase) {
+        this.handlers = handlers.toArray(new LogHandler[0]);
+        this.ignoreCase = ignoreCase;
+
+        TreeSet<Character> characters = new TreeSet<>();
+        for (LogHandler handler : handlers) {
+            for (String keyword : handler.getKeywords()) {
+                for (int i = 0; i < keyword.length(); i++) {
+                    characters.add(fold(keyword.charAt(i)));
+                }
+            }
+        }
+        alphabet = new char[characters.size()];
+        int index = 0;
+        for (char c : characters) {
+            alphabet[index++] = c;
+        }
+        // ASCII classes with case folding already applied
+        for (int c = 0; c < asciiClasses.length; c++) {
+            asciiClasses[c] = classOf(fold((char) c), true);
+        }
+        width = alphabet.length + 1;
+
+        // Trie of all keywords; -1 marks a missing edge
+        List<int[]> trie = new ArrayList<>();
+        List<BitSet> matches = new ArrayList<>();
+        trie.add(newRow());
+        matches.add(new BitSet());
+        for (int h = 0; h < this.handlers.length; h++) {
+            for (String keyword : this.handlers[h].getKeywords()) {
+                if (keyword.isEmpty()) {
+                    continue;
+                }
+                int state = 0;
+                for (int i = 0; i < keyword.length(); i++) {
+                    int c = classOf(fold(keyword.charAt(i)), true);
+                    if (trie.get(state)[c] < 0) {
+                        trie.get(state)[c] = trie.size();
+                        trie.add(newRow());
+                        matches.add(new BitSet());
+                    }
+                    state = trie.get(state)[c];
+                }
+                matches.get(state).set(h);
+            }
+        }
+
+        // Breadth-first: resolve failure links into the table and inherit their matches
+        int states = trie.size();
+        transitions = new int[states * width];
+        int[] failure = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < width; c++) {
+            int child = trie.get(0)[c];
+            transitions[c] = Math.max(child, 0);
+            if (child > 0) {
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int c = 0; c < width; c++) {
+                int child = trie.get(state)[c];
+                int fallback = transitions[failure[state] * width + c];
+                if (child < 0) {
+                    transitions[state * width + c] = fallback;
+                } else {
+                    transitions[state * width + c] = child;
+                    failure[child] = fallback;
+                    matches.get(child).or(matches.get(fallback));
+                    queue[tail++] = child;
+                }
+            }
+        }
+        outputs = new int[states][];
+        for (int state = 0; state < states; state++) {
+            if (!matches.get(state).isEmpty()) {
+                outputs[state] = matches.get(state).stream().toArray();
+            }
+        }
+        int words = (this.handlers.length + 63) >>> 6;
+        found = ThreadLocal.withInitial(() -> new long[words]);
+    }
+
+    int handlerCount() {
+        return handlers.length;
+    }
+
+    // Write the handlers with a keyword in the text to out, in the order they
+    // were given, and return how many there are; out needs handlerCount() slots
+    int match(CharSequence text, LogHandler[] out) {
+        long[] seen = found.get();
+        Arrays.fill(seen, 0);
+        boolean any = false;
+        int state = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            state = transitions[state * width + (c < 128 ? asciiClasses[c] : classOf(fold(c), false))];
+            int[] output = outputs[state];
+            if (output != null) {
+                for (int handler : output) {
+                    seen[handler >>> 6] |= 1L << handler;
+                }
+                any = true;
+            }
+        }
+        if (!any) {
+            return 0;
+        }
+        int count = 0;
+        for (int word = 0; word < seen.length; word++) {
+            for (long bits = seen[word]; bits != 0; bits &= bits - 1) {
+                out[count++] = handlers[word << 6 | Long.numberOfTrailingZeros(bits)];
+            }
+        }
+        return count;
+    }
+
+    private int[] newRow() {
+        int[] row = new int[width];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private char fold(char c) {
+        return ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+    }
+
+    private int classOf(char c, boolean building) {
+        if (!building && c < 128) {
+            // Non-ASCII characters can fold to ASCII ones, e.g. the Kelvin sign to 'k'
+            return asciiClasses[c];
+        }
+        int index = Arrays.binarySearch(alphabet, c);
+        return index < 0 ? 0 : index + 1;
+    }
+}
+
+// Routing of one Logger compiled for a given set of commands and chains.
+// It is built in one go and never changed afterwards, so a caller that
+// takes one instance sees a consistent set of tables.
+final class CompiledRoutes {
+    // Handlers per level, in chain order
+    final EnumMap<LogLevel, LogHandler[]> byLevel;
+    final KeywordMatcher keywordMatcher;
+    // Handlers reachable from the commands, in chain order
+    final LogHandler[] handlers;
+    final Map<LogHandler, Integer> handlerIndexes;
+    final Command[] otherCommands;
+    // Versions this was compiled from
+    final int chainVersion;
+    final int configVersion;
+
+    CompiledRoutes(EnumMap<LogLevel, LogHandler[]> byLevel, KeywordMatcher keywordMatcher, LogHandler[] handlers,
+                   Command[] otherCommands, int chainVersion, int configVersion) {
+        this.byLevel = byLevel;
+        this.keywordMatcher = keywordMatcher;
+        this.handlers = handlers;
+        this.otherCommands = otherCommands;
+        this.chainVersion = chainVersion;
+        this.configVersion = configVersion;
+        handlerIndexes = new IdentityHashMap<>();
+        for (int i = 0; i < handlers.length; i++) {
+            handlerIndexes.put(handlers[i], i);
+        }
+    }
+
+    int handlerIndex(LogHandler handler) {
+        return handlerIndexes.get(handler);
+    }
 }
 
 // Logger class that uses an iterator to process a list of commands
 class Logger {
+    private static final LogHandler[] NO_HANDLERS = new LogHandler[0];
+
     private List<Command> commands = new ArrayList<>();
 
+    // Compiled dispatch: the handlers reachable from the commands are
+    // collected once and each message goes straight to the handlers that
+    // match it, once each, instead of every command walking its chain with
+    // contains(). LEVEL routes by the level prefix, KEYWORD by the handlers'
+    // keywords. The tables are recompiled when a chain, the commands or
+    // ignoreCase change, and replaced through the one volatile field.
+    private DispatchMode dispatchMode = DispatchMode.CHAIN;
+    private volatile boolean ignoreCase;
+    private volatile CompiledRoutes compiled;
+    // Bumped when the commands or ignoreCase change
+    private final AtomicInteger configVersion = new AtomicInteger();
+
     public void addCommand(Command command) {
         commands.add(command);
+        configVersion.incrementAndGet();
+    }
+
+    public void removeCommand(Command command) {
+        commands.remove(command);
+        configVersion.incrementAndGet();
+    }
+
+    public void setDispatchMode(DispatchMode dispatchMode) {
+        this.dispatchMode = dispatchMode;
+    }
+
+    // Case-insensitive keyword matching for KEYWORD dispatch
+    public void setIgnoreCase(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        configVersion.incrementAndGet();
     }
 
     public void processCommands(String message) {
+        if (dispatchMode == DispatchMode.LEVEL) {
+            dispatch(message);
+            return;
+        }
+        if (dispatchMode == DispatchMode.KEYWORD) {
+            dispatchByKeyword(message);
+            return;
+        }
         Iterator<Command> iterator = commands.iterator();
         while (iterator.hasNext()) {
             Command command = iterator.next();
+            Instrumentation.execute(command, message);
+        }
+    }
+
+    // Process a batch: each handler gets all of its messages in one handleBatch call
+    public void processCommands(List<String> messages) {
+        route(messages, LogHandler::deliverBatch, this::runCommands);
+    }
+
+    // Queue-fed pipeline with a worker thread per handler; see LogPipeline
+    public LogPipeline startPipeline(int queueCapacity, int batchSize) {
+        return new LogPipeline(this, new ArrayBlockingQueue<>(queueCapacity), batchSize, 16);
+    }
+
+    // Split messages into one list per handler, keeping their order, and pass
+    // each non-empty list to sink in chain order. Messages that are not routed
+    // to a handler (CHAIN mode, messages without a level prefix in LEVEL mode)
+    // go to chain instead, after the lists gathered so far have been passed
+    // on, so every handler still sees its messages in input order. Commands
+    // other than LogCommands run right away on this thread.
+    void route(List<String> messages, BiConsumer<LogHandler, List<String>> sink, Consumer<String> chain) {
+        DispatchMode mode = dispatchMode;
+        if (mode == DispatchMode.CHAIN) {
+            for (String message : messages) {
+                chain.accept(message);
+            }
+            return;
+        }
+        CompiledRoutes routes = compiledRoutes();
+        List<List<String>> groups = new ArrayList<>(Collections.nCopies(routes.handlers.length, null));
+        // Per call, so concurrent callers do not overwrite each other's matches
+        LogHandler[] matched = mode == DispatchMode.KEYWORD ? new LogHandler[routes.handlers.length] : null;
+        // If a command throws, the messages routed before it are still passed on
+        try {
+            for (String message : messages) {
+                if (mode == DispatchMode.LEVEL) {
+                    LogLevel level = LogLevel.parsePrefix(message);
+                    if (level == null) {
+                        flushGroups(groups, routes, sink);
+                        chain.accept(message);
+                        continue;
+                    }
+                    for (LogHandler handler : routes.byLevel.get(level)) {
+                        addToGroup(groups, routes, handler, message);
+                    }
+                } else {
+                    int count = routes.keywordMatcher.match(message, matched);
+                    for (int i = 0; i < count; i++) {
+                        addToGroup(groups, routes, matched[i], message);
+                    }
+                }
+                for (Command command : routes.otherCommands) {
+                    Instrumentation.execute(command, message);
+                }
+            }
+        } finally {
+            flushGroups(groups, routes, sink);
+        }
+    }
+
+    private void flushGroups(List<List<String>> groups, CompiledRoutes routes,
+                             BiConsumer<LogHandler, List<String>> sink) {
+        for (int i = 0; i < routes.handlers.length; i++) {
+            if (groups.get(i) != null) {
+                sink.accept(routes.handlers[i], groups.get(i));
+                groups.set(i, null);
+            }
+        }
+    }
+
+    // Run a message through every command, i.e. through the chains
+    void runCommands(String message) {
+        for (Command command : commands) {
+            Instrumentation.execute(command, message);
+        }
+    }
+
+    private void addToGroup(List<List<String>> groups, CompiledRoutes routes, LogHandler handler, String message) {
+        int index = routes.handlerIndex(handler);
+        List<String> group = groups.get(index);
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.set(index, group);
+        }
+        group.add(message);
+    }
+
+    // Messages without a level prefix still go through the chains
+    private void dispatch(String message) {
+        LogLevel level = LogLevel.parsePrefix(message);
+        if (level == null) {
+            runCommands(message);
+            return;
+        }
+        CompiledRoutes routes = compiledRoutes();
+        for (LogHandler handler : routes.byLevel.get(level)) {
+            handler.deliver(message);
+        }
+        for (Command command : routes.otherCommands) {
+            Instrumentation.execute(command, message);
+        }
+    }
+
+    private void dispatchByKeyword(String message) {
+        CompiledRoutes routes = compiledRoutes();
+        LogHandler[] matched = new LogHandler[routes.handlers.length];
+        int count = routes.keywordMatcher.match(message, matched);
+        for (int i = 0; i < count; i++) {
+            matched[i].deliver(message);
+        }
+        for (Command command : routes.otherCommands) {
+            Instrumentation.execute(command, message);
+        }
+    }
+
+    // Routing for the current commands and chains, compiled if they changed.
+    // Take it once and read everything from that instance.
+    CompiledRoutes compiledRoutes() {
+        CompiledRoutes current = compiled;
+        int chainVersion = LogHandler.chainVersion();
+        int version = configVersion.get();
+        if (current == null || current.chainVersion != chainVersion || current.configVersion != version) {
+            // Versions are read first, so a change made while compiling is
+            // picked up by the next call
+            current = compileRoutes(chainVersion, version);
+            compiled = current;
+        }
+        return current;
+    }
+
+    DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    // Replay a log file through the handlers; see LogFileIngest
+    public IngestResult ingestFile(Path file) throws IOException {
+        return new LogFileIngest(this, Runtime.getRuntime().availableProcessors(), LogFileIngest.DEFAULT_CHUNK_SIZE)
+                .ingest(file);
+    }
+
+    private CompiledRoutes compileRoutes(int chainVersion, int version) {
+        EnumMap<LogLevel, List<LogHandler>> byLevel = new EnumMap<>(LogLevel.class);
+        Set<LogHandler> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<LogHandler> reachable = new ArrayList<>();
+        List<Command> others = new ArrayList<>();
+        for (Command command : commands) {
+            if (!(command instanceof LogCommand)) {
+                others.add(command);
+                continue;
+            }
+            // Each handler once, in chain order; seen also stops cyclic chains
+            for (LogHandler handler = ((LogCommand) command).getHandler(); handler != null && seen.add(handler);
+                 handler = handler.getNextHandler()) {
+                reachable.add(handler);
+                if (handler.getLevel() != null) {
+                    byLevel.computeIfAbsent(handler.getLevel(), level -> new ArrayList<>()).add(handler);
+                }
+            }
+        }
+        EnumMap<LogLevel, LogHandler[]> levels = new EnumMap<>(LogLevel.class);
+        for (LogLevel level : LogLevel.values()) {
+            List<LogHandler> forLevel = byLevel.get(level);
+            levels.put(level, forLevel == null ? NO_HANDLERS : forLevel.toArray(NO_HANDLERS));
+        }
+        return new CompiledRoutes(levels, new KeywordMatcher(reachable, ignoreCase), reachable.toArray(NO_HANDLERS),
+                others.toArray(new Command[0]), chainVersion, version);
+    }
+}
+
+// Pipeline in front of a Logger. Producers put messages on a bounded
+// BlockingQueue; one classifier thread takes them in batches of up to
+// batchSize and routes them with the logger's dispatch mode; every handler
+// gets its own worker thread, fed through a bounded queue of batches, that
+// calls handleBatch. A slow handler only backs up its own queue until that
+// is full; then the classifier waits, the input queue fills up and producers
+// block. A message the mode does not route runs through the chains on the
+// classifier thread once the workers have finished everything before it.
+// An exception from a command or handler is printed and the pipeline goes
+// on with the next message. The logger must not be used elsewhere while
+// the pipeline runs.
+class LogPipeline implements AutoCloseable {
+    // Sentinels, compared by identity
+    private static final String STOP = new String("stop");
+    private static final List<String> STOP_BATCH = new ArrayList<>();
+
+    // Worker thread and queue of one handler
+    private static final class Worker {
+        final LogHandler handler;
+        final BlockingQueue<List<String>> queue;
+        final Thread thread;
+        // Batches put by the classifier, and batches the worker has finished
+        private long submitted;
+        private long completed;
+
+        Worker(LogHandler handler, int capacity) {
+            this.handler = handler;
+            queue = new ArrayBlockingQueue<>(capacity);
+            thread = new Thread(this::run, "log-handler-" + handler.getClass().getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void put(List<String> batch) {
+            try {
+                queue.put(batch);
+                synchronized (this) {
+                    submitted++;
+                }
+            } catch (InterruptedException e) {
+                // The classifier notices on its next take
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Wait until every batch put so far has been handled
+        synchronized void awaitIdle() throws InterruptedException {
+            while (completed < submitted) {
+                wait();
+            }
+        }
+
+        // When the handler falls behind, everything queued meanwhile is
+        // merged into one handleBatch call, so a per-call cost is paid once
+        private void run() {
+            List<List<String>> pending = new ArrayList<>();
+            try {
+                boolean stopping = false;
+                while (!stopping) {
+                    pending.add(queue.take());
+                    queue.drainTo(pending);
+                    List<String> merged = pending.get(0);
+                    if (pending.size() > 1) {
+                        merged = new ArrayList<>();
+                        for (List<String> batch : pending) {
+                            merged.addAll(batch);
+                        }
+                    }
+                    stopping = pending.get(pending.size() - 1) == STOP_BATCH;
+                    int batches = pending.size();
+                    pending.clear();
+                    if (!merged.isEmpty()) {
+                        try {
+                            handler.deliverBatch(merged);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    synchronized (this) {
+                        completed += batches;
+                        notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final Logger logger;
+    private final BlockingQueue<String> input;
+    private final int batchSize;
+    private final int handlerQueueCapacity;
+    // Only touched by the classifier thread
+    private final Map<LogHandler, Worker> workers = new IdentityHashMap<>();
+    private final Thread classifier;
+    private volatile boolean closed;
+
+    public LogPipeline(Logger logger, BlockingQueue<String> input, int batchSize, int handlerQueueCapacity) {
+        this.logger = logger;
+        this.input = input;
+        this.batchSize = batchSize;
+        this.handlerQueueCapacity = handlerQueueCapacity;
+        classifier = new Thread(this::classify, "log-classifier");
+        classifier.setDaemon(true);
+        classifier.start();
+    }
+
+    // Blocks while the input queue is full
+    public void submit(String message) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Pipeline is closed");
+        }
+        input.put(message);
+    }
+
+    // Process everything submitted so far, then stop the threads
+    @Override
+    public void close() {
+        try {
+            if (!closed) {
+                closed = true;
+                input.put(STOP);
+            }
+            classifier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void classify() {
+        List<String> batch = new ArrayList<>(batchSize);
+        try {
+            boolean stopping = false;
+            while (!stopping) {
+                batch.add(input.take());
+                input.drainTo(batch, batchSize - 1);
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.get(i) == STOP) {
+                        batch.subList(i, batch.size()).clear();
+                        stopping = true;
+                    }
+                }
+                try {
+                    logger.route(batch, this::dispatch, this::runChain);
+                } catch (RuntimeException e) {
+                    // A failing command must not stop the pipeline; the rest
+                    // of this batch is lost, later batches go on as usual
+                    e.printStackTrace();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Nothing takes from the input queue any more: refuse new
+            // messages and release producers blocked on a full queue
+            closed = true;
+            input.clear();
+            stopWorkers();
+        }
+    }
+
+    private void dispatch(LogHandler handler, List<String> messages) {
+        workers.computeIfAbsent(handler, h -> new Worker(h, handlerQueueCapacity)).put(messages);
+    }
+
+    // The chains can reach any handler, so let the workers catch up first
+    private void runChain(String message) {
+        try {
+            for (Worker worker : workers.values()) {
+                worker.awaitIdle();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            logger.runCommands(message);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void stopWorkers() {
+        for (Worker worker : workers.values()) {
+            try {
+                worker.queue.put(STOP_BATCH);
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                worker.thread.interrupt();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+// Reusable CharSequence over a char array, so a line can be matched before a
+// String exists for it
+final class CharLine implements CharSequence {
+    private char[] chars = new char[256];
+    private int length;
+
+    // Decode the UTF-8 bytes [from, to) of the buffer; malformed bytes become U+FFFD
+    void decode(MappedByteBuffer bytes, int from, int to) {
+        if (chars.length < to - from) {
+            chars = new char[Math.max(to - from, chars.length * 2)];
+        }
+        int n = 0;
+        int i = from;
+        while (i < to) {
+            int b = bytes.get(i) & 0xff;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+                i++;
+            } else if (b >= 0xc2 && b < 0xe0 && i + 1 < to && continuation(bytes, i + 1)) {
+                chars[n++] = (char) ((b & 0x1f) << 6 | bytes.get(i + 1) & 0x3f);
+                i += 2;
+            } else if (b >= 0xe0 && b < 0xf0 && i + 2 < to && continuation(bytes, i + 1) && continuation(bytes, i + 2)) {
+                chars[n++] = (char) ((b & 0x0f) << 12 | (bytes.get(i + 1) & 0x3f) << 6 | bytes.get(i + 2) & 0x3f);
+                i += 3;
+            } else if (b >= 0xf0 && b < 0xf5 && i + 3 < to && continuation(bytes, i + 1) && continuation(bytes, i + 2)
+                    && continuation(bytes, i + 3)) {
+                int codePoint = (b & 0x07) << 18 | (bytes.get(i + 1) & 0x3f) << 12 | (bytes.get(i + 2) & 0x3f) << 6
+                        | bytes.get(i + 3) & 0x3f;
+                chars[n++] = Character.highSurrogate(codePoint);
+                chars[n++] = Character.lowSurrogate(codePoint);
+                i += 4;
+            } else {
+                chars[n++] = '\uFFFD';
+                i++;
+            }
+        }
+        length = n;
+    }
+
+    private static boolean continuation(MappedByteBuffer bytes, int index) {
+        return (bytes.get(index) & 0xc0) == 0x80;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
+
+// Messages each handler took from its chain without passing them on,
+// counted on the threads that have a tally open. With none open anywhere,
+// a handler only pays one volatile read per call for it.
+final class ChainTally {
+    private static final ThreadLocal<ChainTally> CURRENT = new ThreadLocal<>();
+    private static final AtomicInteger OPEN = new AtomicInteger();
+
+    private final Map<LogHandler, long[]> accepted = new IdentityHashMap<>();
+    // Tally this one replaced on its thread, e.g. for an ingest within an ingest
+    private final ChainTally outer;
+    // passToNext calls so far, so receive can tell whether its handler passed
+    long passes;
+
+    private ChainTally(ChainTally outer) {
+        this.outer = outer;
+    }
+
+    static ChainTally open() {
+        ChainTally tally = new ChainTally(CURRENT.get());
+        CURRENT.set(tally);
+        OPEN.incrementAndGet();
+        return tally;
+    }
+
+    static ChainTally current() {
+        return OPEN.get() == 0 ? null : CURRENT.get();
+    }
+
+    void close() {
+        if (outer != null) {
+            CURRENT.set(outer);
+        } else {
+            CURRENT.remove();
+        }
+        OPEN.decrementAndGet();
+    }
+
+    void accepted(LogHandler handler) {
+        accepted.computeIfAbsent(handler, h -> new long[1])[0]++;
+    }
+
+    Map<LogHandler, long[]> counts() {
+        return accepted;
+    }
+}
+
+// Counts from one file ingest
+class IngestResult {
+    private final long lines;
+    private final long unrouted;
+    private final Map<LogHandler, Long> handlerCounts;
+
+    IngestResult(long lines, long unrouted, Map<LogHandler, Long> handlerCounts) {
+        this.lines = lines;
+        this.unrouted = unrouted;
+        this.handlerCounts = handlerCounts;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    // Lines that went through the chains instead of straight to handlers
+    public long getUnrouted() {
+        return unrouted;
+    }
+
+    // Messages accepted by each handler, routed or through a chain, in chain order
+    public Map<LogHandler, Long> getHandlerCounts() {
+        return handlerCounts;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder().append("lines=").append(lines).append(", unrouted=").append(unrouted);
+        for (Map.Entry<LogHandler, Long> count : handlerCounts.entrySet()) {
+            text.append(", ").append(count.getKey().getClass().getSimpleName()).append('=').append(count.getValue());
+        }
+        return text.toString();
+    }
+}
+
+// Replays a log file through a logger's handlers. The file is split into
+// line-aligned chunks that are memory-mapped and classified in parallel with
+// the logger's dispatch mode, using one snapshot of its routing taken when
+// the ingest starts. Results are delivered on the calling thread in chunk
+// order. A chunk is a sequence of runs: routed lines between two lines the
+// mode does not route are one run, delivered as a handleBatch call per
+// handler, and each unrouted line goes through the commands on its own in
+// between. Every handler therefore sees its messages in file order, the
+// same as with processCommands(List). Commands other than LogCommands get
+// every line, also in file order. At most two chunks per thread are in flight.
+//
+// Only KEYWORD lines and level-prefixed LEVEL lines are routed: they are
+// decoded into a reused CharLine and only become a String once a handler
+// accepts them. Unrouted lines - every line in CHAIN mode, the default, and
+// lines without a level prefix in LEVEL mode - need the handlers' own
+// handleMessage to find out who takes them, so each becomes a String during
+// classification and the chains then run one line at a time on the calling
+// thread. Decoding and splitting are still parallel for them, the handler
+// work is not.
+class LogFileIngest {
+    static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    // Classified lines of one chunk, in file order
+    private static final class Chunk {
+        final List<Run> runs = new ArrayList<>();
+        long lines;
+    }
+
+    // Consecutive routed lines split per handler, or one line for the chains
+    private static final class Run {
+        final List<List<String>> groups;
+        final List<String> everyLine;
+        final String unrouted;
+
+        Run(int handlers) {
+            groups = new ArrayList<>(Collections.nCopies(handlers, null));
+            everyLine = new ArrayList<>();
+            unrouted = null;
+        }
+
+        Run(String unrouted) {
+            groups = null;
+            everyLine = null;
+            this.unrouted = unrouted;
+        }
+    }
+
+    private final Logger logger;
+    private final int threads;
+    private final int chunkSize;
+
+    LogFileIngest(Logger logger, int threads, int chunkSize) {
+        this.logger = logger;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    IngestResult ingest(Path file) throws IOException {
+        // One snapshot for the whole file, so a handler added meanwhile
+        // cannot mix two handler tables; the workers only read it
+        CompiledRoutes routes = logger.compiledRoutes();
+        DispatchMode mode = logger.getDispatchMode();
+        LogHandler[] handlers = routes.handlers;
+        Command[] others = routes.otherCommands;
+        long[] counts = new long[handlers.length];
+        long lines = 0;
+        long unrouted = 0;
+        ChainTally tally = ChainTally.open();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "log-ingest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+            long start = 0;
+            while (start < size || !inFlight.isEmpty()) {
+                while (start < size && inFlight.size() < threads * 2) {
+                    long end = lineEnd(channel, Math.min(start + chunkSize, size), size);
+                    long chunkStart = start;
+                    inFlight.add(executor.submit(() -> classify(channel, chunkStart, end, routes, mode, others.length > 0)));
+                    start = end;
+                }
+                Chunk chunk = await(inFlight.poll());
+                lines += chunk.lines;
+                for (Run run : chunk.runs) {
+                    if (run.unrouted != null) {
+                        unrouted++;
+                        logger.runCommands(run.unrouted);
+                        continue;
+                    }
+                    for (int i = 0; i < handlers.length; i++) {
+                        List<String> group = run.groups.get(i);
+                        if (group != null) {
+                            handlers[i].deliverBatch(group);
+                            counts[i] += group.size();
+                        }
+                    }
+                    for (String line : run.everyLine) {
+                        for (Command command : others) {
+                            Instrumentation.execute(command, line);
+                        }
+                    }
+                }
+            }
+        } finally {
+            tally.close();
+            executor.shutdownNow();
+        }
+        Map<LogHandler, Long> handlerCounts = new LinkedHashMap<>();
+        for (int i = 0; i < handlers.length; i++) {
+            handlerCounts.put(handlers[i], counts[i]);
+        }
+        for (Map.Entry<LogHandler, long[]> accepted : tally.counts().entrySet()) {
+            handlerCounts.merge(accepted.getKey(), accepted.getValue()[0], Long::sum);
+        }
+        return new IngestResult(lines, unrouted, handlerCounts);
+    }
+
+    // Position just past the first newline at or after position - 1, or the end of the file
+    private static long lineEnd(FileChannel channel, long position, long size) throws IOException {
+        if (position >= size) {
+            return size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (long offset = position - 1; offset < size; offset += buffer.limit()) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            buffer.limit(read);
+        }
+        return size;
+    }
+
+    private static Chunk classify(FileChannel channel, long start, long end, CompiledRoutes routes, DispatchMode mode,
+                                  boolean keepEveryLine) throws IOException {
+        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        LogHandler[] matched = new LogHandler[routes.handlers.length];
+        CharLine line = new CharLine();
+        Chunk chunk = new Chunk();
+        Run run = null;
+        int length = bytes.limit();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && bytes.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && bytes.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            line.decode(bytes, lineStart, lineEnd);
+            lineStart = next;
+            chunk.lines++;
+
+            LogLevel level = mode == DispatchMode.LEVEL ? LogLevel.parsePrefix(line) : null;
+            if (mode != DispatchMode.KEYWORD && level == null) {
+                // The chains will see it; commands other than LogCommands run there too
+                chunk.runs.add(new Run(line.toString()));
+                run = null;
+                continue;
+            }
+            if (run == null) {
+                run = new Run(routes.handlers.length);
+                chunk.runs.add(run);
+            }
+            String text = null;
+            if (mode == DispatchMode.KEYWORD) {
+                int count = routes.keywordMatcher.match(line, matched);
+                for (int i = 0; i < count; i++) {
+                    text = text != null ? text : line.toString();
+                    add(run, routes.handlerIndex(matched[i]), text);
+                }
+            } else {
+                for (LogHandler handler : routes.byLevel.get(level)) {
+                    text = text != null ? text : line.toString();
+                    add(run, routes.handlerIndex(handler), text);
+                }
+            }
+            if (keepEveryLine) {
+                run.everyLine.add(text != null ? text : line.toString());
+            }
+        }
+        return chunk;
+    }
+
+    private static void add(Run run, int index, String text) {
+        List<String> group = run.groups.get(index);
+        if (group == null) {
+            group = new ArrayList<>();
+            run.groups.set(index, group);
+        }
+        group.add(text);
+    }
+
+    private static Chunk await(Future<Chunk> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while ingesting", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+}
+
+// Command that replays the log file named by the message through a logger
+// and prints the counts
+class IngestFileCommand implements Command {
+    private final Logger logger;
+
+    public IngestFileCommand(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void execute(String message) {
+        try {
+            System.out.println("Ingested " + message + ": " + logger.ingestFile(Path.of(message)));
+        } catch (IOException e) {
+            System.out.println("Could not ingest " + message + ": " + e.getMessage());
+        }
+    }
+}
+
+// Latency histogram with HdrHistogram-style log-linear buckets: values below
+// 64 ns are exact, and every power of two above that is split into 32
+// buckets, so any recorded value is within about 3% of its bucket. Values up
+// to 2^40 ns (about 18 minutes) are covered, larger ones are clamped.
+// Recording is lock-free and histograms can be merged through snapshots.
+final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int MAX_BITS = 40;
+    static final int BUCKETS = SUB_COUNT + (MAX_BITS - SUB_BITS + 1) * HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Record count values of nanos each
+    void record(long nanos, long count) {
+        long value = Math.max(0, Math.min(nanos, (1L << MAX_BITS) - 1));
+        counts.getAndAdd(bucket(value), count);
+        total.add(count);
+        sum.add(value * count);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    // Highest value that falls into the bucket
+    static long bucketLimit(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_COUNT) / HALF_COUNT + 1;
+        long top = (bucket - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+
+    HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new HistogramSnapshot(copy, total.sum(), sum.sum(), max.get());
+    }
+}
+
+// Point-in-time copy of a LatencyHistogram; counters are read one at a time,
+// so a snapshot taken while recording may be off by the calls in flight
+final class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    // Value at or below which the given fraction of recorded values fall
+    public long getPercentile(double fraction) {
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(LatencyHistogram.bucketLimit(i), max);
+            }
+        }
+        return max;
+    }
+
+    public HistogramSnapshot merge(HistogramSnapshot other) {
+        long[] merged = new long[counts.length];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = counts[i] + other.counts[i];
+        }
+        return new HistogramSnapshot(merged, count + other.count, sum + other.sum, Math.max(max, other.max));
+    }
+}
+
+// Counters of one handler
+final class HandlerStats {
+    private final LogHandler handler;
+    private final AtomicBoolean registered = new AtomicBoolean();
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder passedThrough = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    HandlerStats(LogHandler handler) {
+        this.handler = handler;
+    }
+
+    void record(long nanos, int messages) {
+        register();
+        invocations.add(messages);
+        latency.record(nanos / messages, messages);
+    }
+
+    void passedThrough() {
+        register();
+        passedThrough.increment();
+    }
+
+    private void register() {
+        if (!registered.get() && registered.compareAndSet(false, true)) {
+            Instrumentation.register(this);
+        }
+    }
+
+    StatsSnapshot snapshot() {
+        return new StatsSnapshot(Instrumentation.name(handler), invocations.sum(), passedThrough.sum(), latency.snapshot());
+    }
+}
+
+// Counters of one handler or command at snapshot time. Handler latency is
+// the handler's own time, without the handlers it passed the message to;
+// command latency includes the whole chain.
+final class StatsSnapshot {
+    private final String name;
+    private final long invocations;
+    private final long passedThrough;
+    private final HistogramSnapshot latency;
+
+    StatsSnapshot(String name, long invocations, long passedThrough, HistogramSnapshot latency) {
+        this.name = name;
+        this.invocations = invocations;
+        this.passedThrough = passedThrough;
+        this.latency = latency;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getInvocations() {
+        return invocations;
+    }
+
+    public long getPassedThrough() {
+        return passedThrough;
+    }
+
+    public HistogramSnapshot getLatency() {
+        return latency;
+    }
+}
+
+// All counters at one point in time
+final class InstrumentationSnapshot {
+    private final long elapsedNanos;
+    private final List<StatsSnapshot> handlers;
+    private final List<StatsSnapshot> commands;
+
+    InstrumentationSnapshot(long elapsedNanos, List<StatsSnapshot> handlers, List<StatsSnapshot> commands) {
+        this.elapsedNanos = elapsedNanos;
+        this.handlers = handlers;
+        this.commands = commands;
+    }
+
+    // Time since instrumentation was first enabled
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public List<StatsSnapshot> getHandlers() {
+        return handlers;
+    }
+
+    public List<StatsSnapshot> getCommands() {
+        return commands;
+    }
+
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-32s %12s %12s %10s %10s %10s %10s %10s%n",
+                "name", "calls", "passed", "calls/s", "p50 ns", "p99 ns", "p99.9 ns", "max ns"));
+        for (StatsSnapshot stats : handlers) {
+            appendText(text, stats);
+        }
+        for (StatsSnapshot stats : commands) {
+            appendText(text, stats);
+        }
+        return text.toString();
+    }
+
+    private void appendText(StringBuilder text, StatsSnapshot stats) {
+        HistogramSnapshot latency = stats.getLatency();
+        text.append(String.format("%-32s %12d %12d %10.0f %10d %10d %10d %10d%n", stats.getName(),
+                stats.getInvocations(), stats.getPassedThrough(), rate(stats), latency.getPercentile(0.5),
+                latency.getPercentile(0.99), latency.getPercentile(0.999), latency.getMax()));
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder().append("{\"elapsedNanos\":").append(elapsedNanos);
+        appendJson(json, "handlers", handlers);
+        appendJson(json, "commands", commands);
+        return json.append('}').toString();
+    }
+
+    private void appendJson(StringBuilder json, String field, List<StatsSnapshot> stats) {
+        json.append(",\"").append(field).append("\":[");
+        for (int i = 0; i < stats.size(); i++) {
+            StatsSnapshot entry = stats.get(i);
+            HistogramSnapshot latency = entry.getLatency();
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"name\":\"").append(entry.getName().replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",\"calls\":").append(entry.getInvocations())
+                    .append(",\"passed\":").append(entry.getPassedThrough())
+                    .append(",\"callsPerSecond\":").append(Math.round(rate(entry)))
+                    .append(",\"meanNanos\":").append(Math.round(latency.getMean()))
+                    .append(",\"p50Nanos\":").append(latency.getPercentile(0.5))
+                    .append(",\"p99Nanos\":").append(latency.getPercentile(0.99))
+                    .append(",\"p999Nanos\":").append(latency.getPercentile(0.999))
+                    .append(",\"maxNanos\":").append(latency.getMax())
+                    .append('}');
+        }
+        json.append(']');
+    }
+
+    private double rate(StatsSnapshot stats) {
+        return elapsedNanos == 0 ? 0 : stats.getInvocations() * 1e9 / elapsedNanos;
+    }
+}
+
+// Switch and registry for handler and command statistics. When disabled,
+// LogHandler and Logger only pay a volatile read per call; when enabled a
+// call costs two System.nanoTime() reads and a few atomic adds. Handlers
+// show up in snapshots once they have recorded something.
+final class Instrumentation {
+    private static volatile boolean enabled;
+    private static volatile long enabledAt;
+    private static final Queue<HandlerStats> HANDLERS = new ConcurrentLinkedQueue<>();
+    private static final Map<Command, CommandStats> COMMANDS = new ConcurrentHashMap<>();
+    // Time spent in handlers called from the current one, for self times
+    private static final ThreadLocal<long[]> NESTED = ThreadLocal.withInitial(() -> new long[1]);
+
+    // Counters of one command
+    private static final class CommandStats {
+        final LongAdder invocations = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    private Instrumentation() {
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static synchronized void setEnabled(boolean on) {
+        if (on && enabledAt == 0) {
+            enabledAt = System.nanoTime();
+        }
+        enabled = on;
+    }
+
+    // Run a command, timing it when enabled
+    static void execute(Command command, String message) {
+        if (!enabled) {
             command.execute(message);
+            return;
+        }
+        CommandStats stats = COMMANDS.computeIfAbsent(command, c -> new CommandStats());
+        long start = System.nanoTime();
+        try {
+            command.execute(message);
+        } finally {
+            stats.invocations.increment();
+            stats.latency.record(System.nanoTime() - start, 1);
+        }
+    }
+
+    // Start timing a handler call: sets aside the time the caller has spent
+    // in nested handlers so far and returns it for exit()
+    static long enter() {
+        long[] nested = NESTED.get();
+        long outer = nested[0];
+        nested[0] = 0;
+        return outer;
+    }
+
+    // Finish timing a handler call and return its own time, i.e. without the
+    // handlers it called; the whole call counts as nested time for the caller
+    static long exit(long start, long outer) {
+        long elapsed = System.nanoTime() - start;
+        long[] nested = NESTED.get();
+        long self = elapsed - nested[0];
+        nested[0] = outer + elapsed;
+        return self;
+    }
+
+    static void register(HandlerStats stats) {
+        HANDLERS.add(stats);
+    }
+
+    static String name(Object owner) {
+        String type = owner.getClass().getSimpleName();
+        return (type.isEmpty() ? owner.getClass().getName() : type) + "@" + Integer.toHexString(System.identityHashCode(owner));
+    }
+
+    public static InstrumentationSnapshot snapshot() {
+        long start = enabledAt;
+        List<StatsSnapshot> handlers = new ArrayList<>();
+        for (HandlerStats stats : HANDLERS) {
+            handlers.add(stats.snapshot());
         }
+        List<StatsSnapshot> commands = new ArrayList<>();
+        for (Map.Entry<Command, CommandStats> entry : COMMANDS.entrySet()) {
+            CommandStats stats = entry.getValue();
+            commands.add(new StatsSnapshot(name(entry.getKey()), stats.invocations.sum(), 0, stats.latency.snapshot()));
+        }
+        return new InstrumentationSnapshot(start == 0 ? 0 : System.nanoTime() - start, handlers, commands);
+    }
+}
+
+// Prints an instrumentation snapshot at a fixed period, as a text table or
+// as one JSON object per line
+class InstrumentationReporter implements AutoCloseable {
+    private final ScheduledExecutorService scheduler;
+
+    public InstrumentationReporter(PrintStream out, long periodMillis, boolean json) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "instrumentation-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            InstrumentationSnapshot snapshot = Instrumentation.snapshot();
+            out.println(json ? snapshot.toJson() : snapshot.toText());
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
+
+// Order check for batched delivery: a mix of level-prefixed messages and
+// messages that only the chains can place goes through processCommands(List),
+// through a LogPipeline and through a file ingest, and each handler must see
+// its messages in input order every time. The ingest must also count each
+// handler's messages, whichever way they reached it. Finally several threads
+// call processCommands(String) at once and each handler must get exactly
+// its own messages, none lost or misrouted. A pipeline whose commands throw
+// must keep going and close normally.
+// Run with: java LogOrderCheck
+class LogOrderCheck {
+    // Handler that records what it processes instead of printing it
+    static final class RecordingHandler extends LogHandler {
+        private final LogLevel level;
+        final List<String> seen = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingHandler(LogLevel level) {
+            this.level = level;
+            addKeyword(level.name());
+        }
+
+        @Override
+        public void handleMessage(String message) {
+            if (message.contains(level.name())) {
+                process(message);
+            } else {
+                passToNext(message);
+            }
+        }
+
+        @Override
+        public LogLevel getLevel() {
+            return level;
+        }
+
+        @Override
+        public void process(String message) {
+            seen.add(message);
+        }
+    }
+
+    static final List<String> INPUT = Arrays.asList("INFO: a", "note INFO b", "INFO: c", "DEBUG: d",
+            "plain DEBUG e", "INFO: f", "ERROR: g", "INFO and ERROR h", "ERROR: i", "INFO: j");
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        Path file = Files.createTempFile("log-order", ".log");
+        Files.write(file, INPUT);
+        for (DispatchMode mode : DispatchMode.values()) {
+            RecordingHandler[] handlers = newChain();
+            Logger logger = newLogger(handlers, mode);
+            logger.processCommands(INPUT);
+            check("processCommands(List), " + mode, mode, handlers);
+
+            handlers = newChain();
+            logger = newLogger(handlers, mode);
+            try (LogPipeline pipeline = logger.startPipeline(4, 3)) {
+                for (String message : INPUT) {
+                    pipeline.submit(message);
+                }
+            }
+            check("pipeline, " + mode, mode, handlers);
+
+            handlers = newChain();
+            logger = newLogger(handlers, mode);
+            IngestResult result = logger.ingestFile(file);
+            check("ingest, " + mode, mode, handlers);
+            for (RecordingHandler handler : handlers) {
+                long counted = result.getHandlerCounts().getOrDefault(handler, 0L);
+                if (counted != handler.seen.size()) {
+                    throw new IllegalStateException("ingest, " + mode + ": " + handler.getLevel() + " counted " + counted
+                            + " of " + handler.seen.size());
+                }
+            }
+        }
+        Files.delete(file);
+        for (DispatchMode mode : DispatchMode.values()) {
+            checkConcurrent(mode, 4, 20_000);
+            checkFailingCommand(mode);
+        }
+        System.out.println("OK");
+    }
+
+    static void checkConcurrent(DispatchMode mode, int threads, int rounds) throws InterruptedException {
+        RecordingHandler[] handlers = newChain();
+        Logger logger = newLogger(handlers, mode);
+        Thread[] callers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            callers[t] = new Thread(() -> {
+                for (int round = 0; round < rounds; round++) {
+                    for (String message : INPUT) {
+                        logger.processCommands(message);
+                    }
+                }
+            });
+            callers[t].start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        for (RecordingHandler handler : handlers) {
+            Map<String, Integer> expected = new TreeMap<>();
+            for (String message : INPUT) {
+                if (takes(handlers, handler, message, mode)) {
+                    expected.put(message, threads * rounds);
+                }
+            }
+            Map<String, Integer> seen = new TreeMap<>();
+            for (String message : handler.seen) {
+                seen.merge(message, 1, Integer::sum);
+            }
+            if (!expected.equals(seen)) {
+                throw new IllegalStateException("concurrent callers, " + mode + ": " + handler.getLevel() + " saw " + seen
+                        + ", expected " + expected);
+            }
+        }
+    }
+
+    static void checkFailingCommand(DispatchMode mode) throws InterruptedException {
+        RecordingHandler[] handlers = newChain();
+        Logger logger = newLogger(handlers, mode);
+        logger.addCommand(message -> {
+            throw new IllegalStateException("Expected failure");
+        });
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        // Batches of one, so each failure only costs its own message's commands
+        try (LogPipeline pipeline = logger.startPipeline(2, 1)) {
+            // Far more than the queues hold, so a dead classifier would hang here
+            for (int i = 0; i < 100; i++) {
+                pipeline.submit("INFO: " + i);
+            }
+        } finally {
+            System.setErr(err);
+        }
+        if (handlers[0].seen.size() != 100) {
+            throw new IllegalStateException("failing command, " + mode + ": INFO saw " + handlers[0].seen.size() + " of 100");
+        }
+    }
+
+    static RecordingHandler[] newChain() {
+        RecordingHandler[] handlers = {
+                new RecordingHandler(LogLevel.INFO), new RecordingHandler(LogLevel.DEBUG), new RecordingHandler(LogLevel.ERROR)};
+        handlers[0].setNextHandler(handlers[1]);
+        handlers[1].setNextHandler(handlers[2]);
+        return handlers;
+    }
+
+    static Logger newLogger(RecordingHandler[] handlers, DispatchMode mode) {
+        Logger logger = new Logger();
+        logger.addCommand(new LogCommand(handlers[0]));
+        logger.setDispatchMode(mode);
+        return logger;
+    }
+
+    // Each handler must have exactly the messages its mode gives it, in input order
+    static void check(String what, DispatchMode mode, RecordingHandler[] handlers) {
+        for (RecordingHandler handler : handlers) {
+            List<String> expected = new ArrayList<>();
+            for (String message : INPUT) {
+                if (takes(handlers, handler, message, mode)) {
+                    expected.add(message);
+                }
+            }
+            if (!expected.equals(handler.seen)) {
+                throw new IllegalStateException(what + ": " + handler.getLevel() + " saw " + handler.seen + ", expected " + expected);
+            }
+        }
+    }
+
+    private static boolean takes(RecordingHandler[] handlers, RecordingHandler handler, String message, DispatchMode mode) {
+        String name = handler.getLevel().name();
+        if (mode == DispatchMode.KEYWORD) {
+            return message.contains(name);
+        }
+        LogLevel prefix = mode == DispatchMode.LEVEL ? LogLevel.parsePrefix(message) : null;
+        if (prefix != null) {
+            return prefix == handler.getLevel();
+        }
+        // First handler in the chain whose level the message mentions
+        for (RecordingHandler first : handlers) {
+            if (message.contains(first.getLevel().name())) {
+                return first == handler;
+            }
+        }
+        return false;
     }
 }
 
@@ -126,5 +1888,25 @@ public class Client {
 
         System.out.println("\nLogging mixed message:");
         logger.processCommands("ERROR: This is an error message with INFO and DEBUG");
+
+        // Same messages routed by level prefix, once per matching handler
+        logger.setDispatchMode(DispatchMode.LEVEL);
+        System.out.println("\nLevel dispatch:");
+        logger.processCommands("INFO: This is an info message");
+        logger.processCommands("DEBUG: This is a debug message");
+        logger.processCommands("ERROR: This is an error message with INFO and DEBUG");
+
+        // Handlers picked by keyword, all keywords matched in one pass
+        errorHandler.addKeyword("timeout");
+        logger.setDispatchMode(DispatchMode.KEYWORD);
+        logger.setIgnoreCase(true);
+        System.out.println("\nKeyword dispatch:");
+        logger.processCommands("Connection Timeout while flushing debug buffers");
+        logger.processCommands("ERROR: This is an error message with INFO and DEBUG");
+
+        // A batch, grouped so each handler gets its messages in one call
+        logger.setDispatchMode(DispatchMode.LEVEL);
+        System.out.println("\nBatch:");
+        logger.processCommands(List.of("INFO: Batch started", "ERROR: Disk full", "INFO: Batch finished"));
     }
 }